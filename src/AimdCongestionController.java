@@ -0,0 +1,57 @@
+/**
+ * Additive increase, multiplicative decrease, as done by TCP Reno.
+ * <p>
+ * The window starts at 1 segment and doubles every round trip (slow start) until it reaches the slow start
+ * threshold. After that it grows by one segment per round trip. A loss halves the window, a timeout halves the
+ * threshold and drops the window back to 1. Transfers sharing a bottleneck converge to a fair share this way.
+ */
+class AimdCongestionController implements CongestionController {
+    private final static double INITIAL_WINDOW = 1, MIN_THRESHOLD = 2;
+
+    private final int maxWindow;
+    private double congestionWindow = INITIAL_WINDOW, slowStartThreshold;
+
+    /**
+     * Constructs a controller in slow start
+     *
+     * @param maxWindow the largest window the sender will use, the window doesn't grow past it
+     */
+    AimdCongestionController(int maxWindow) {
+        this.maxWindow = maxWindow;
+        slowStartThreshold = maxWindow;
+    }
+
+    @Override
+    public int window() {
+        return (int) congestionWindow;
+    }
+
+    @Override
+    public void onAck(int newlyAcked) {
+        for (int i = 0; i < newlyAcked; i++) {
+            if (congestionWindow < slowStartThreshold) {
+                congestionWindow += 1;
+            } else {
+                congestionWindow += 1 / congestionWindow;
+            }
+        }
+        congestionWindow = Math.min(congestionWindow, maxWindow);
+    }
+
+    @Override
+    public void onLoss() {
+        slowStartThreshold = Math.max(MIN_THRESHOLD, congestionWindow / 2);
+        congestionWindow = slowStartThreshold;
+    }
+
+    @Override
+    public void onTimeout() {
+        slowStartThreshold = Math.max(MIN_THRESHOLD, congestionWindow / 2);
+        congestionWindow = INITIAL_WINDOW;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("cwnd=%.1f ssthresh=%.1f", congestionWindow, slowStartThreshold);
+    }
+}
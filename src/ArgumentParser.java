@@ -13,6 +13,10 @@ class ArgumentParser {
     byte roverId = 10;
     boolean success=false;
     String fileToSend;
+    int windowSize = 32; // Number of unacknowledged segments the sender may have in flight
+    String congestionControl = "aimd";
+    int forwardingThreads = Runtime.getRuntime().availableProcessors(); // Threads forwarding and receiving JPackets
+    String dropPolicy = "tail"; // How the queue of every next hop drops packets
 
     /**
      * Constructs the argument parser object using the arguments which are
@@ -61,6 +65,34 @@ class ArgumentParser {
                         destAddress = InetAddress.getByName(args[index + 1]);
                         index += 2;
                         break;
+                    case "-w":
+                    case "--window":
+                        windowSize = Integer.parseInt(args[index + 1]);
+                        if (windowSize < 1) {
+                            throw new IllegalArgumentException("The window size has to be at least 1");
+                        }
+                        index += 2;
+                        break;
+                    case "-c":
+                    case "--congestion":
+                        congestionControl = args[index + 1];
+                        CongestionController.forName(congestionControl, windowSize); // fail early on a bad name
+                        index += 2;
+                        break;
+                    case "-t":
+                    case "--threads":
+                        forwardingThreads = Integer.parseInt(args[index + 1]);
+                        if (forwardingThreads < 1) {
+                            throw new IllegalArgumentException("At least one forwarding thread is needed");
+                        }
+                        index += 2;
+                        break;
+                    case "-q":
+                    case "--queue":
+                        dropPolicy = args[index + 1];
+                        DropPolicy.forName(dropPolicy); // fail early on a bad name
+                        index += 2;
+                        break;
                     default:
                             throw new IllegalArgumentException("You've probably provided an Illegal argument. " +
                                     "Please run `java Rover --help` for the correct options");
@@ -78,8 +110,9 @@ class ArgumentParser {
                 "USAGE :\n " +
                 "- java Rover [-h | --help]\n"+
                 "- java Rover [-p | --port] 520 [-m | --multicastIp] 233.0.0.0  [-i | --id] 10" +
-                " [-f | --file] fileToSend  [-d | --dest]\n" +
+                " [-f | --file] fileToSend  [-d | --dest] [-w | --window] 32" +
+                " [-c | --congestion] aimd|fixed [-t | --threads] 4 [-q | --queue] tail|red\n" +
                 "\nEXAMPLE:\n" +
-                "java Rover --port 520 --multicastIp 233.0.0.0 --id 10 --file path/to/file --dest 10.2.0.1");
+                "java Rover --port 520 --multicastIp 233.0.0.0 --id 10 --file path/to/file --dest 10.2.0.1 --window 32");
     }
 }
\ No newline at end of file
@@ -0,0 +1,49 @@
+/**
+ * Decides how many segments a JRTP sender may have in flight, based on what the network tells it through ACKs,
+ * duplicate ACKs and timeouts. The sender never exceeds its own window size, whatever the controller allows.
+ * <p>
+ * Every transfer gets its own controller, so implementations don't need to be thread safe.
+ */
+interface CongestionController {
+
+    /**
+     * @return the number of unacknowledged segments the sender may have in flight, at least 1
+     */
+    int window();
+
+    /**
+     * Called when an ACK acknowledges new segments
+     *
+     * @param newlyAcked the number of segments the ACK acknowledged for the first time
+     */
+    void onAck(int newlyAcked);
+
+    /**
+     * Called when duplicate ACKs show that a segment was lost while later ones still get through. Called at most once
+     * per window of data.
+     */
+    void onLoss();
+
+    /**
+     * Called when the retransmission timer expired, which means nothing gets through anymore
+     */
+    void onTimeout();
+
+    /**
+     * Returns the controller with the given name
+     *
+     * @param name      "aimd" or "fixed"
+     * @param maxWindow the largest window the sender will use
+     * @return a new controller
+     */
+    static CongestionController forName(String name, int maxWindow) {
+        switch (name) {
+            case "aimd":
+                return new AimdCongestionController(maxWindow);
+            case "fixed":
+                return new FixedCongestionController(maxWindow);
+            default:
+                throw new IllegalArgumentException("Unknown congestion control " + name);
+        }
+    }
+}
@@ -0,0 +1,34 @@
+/**
+ * Decides which packets an output queue drops before the queue is full. A full queue always drops what arrives.
+ * <p>
+ * Every queue gets its own policy, which is only called with the queue's lock held, so implementations don't need to
+ * be thread safe.
+ */
+interface DropPolicy {
+
+    /**
+     * Called for every packet arriving at the queue
+     *
+     * @param depth    the number of packets waiting in the queue
+     * @param capacity the number of packets the queue can hold
+     * @return true if the packet should be dropped although the queue may have room for it
+     */
+    boolean shouldDrop(int depth, int capacity);
+
+    /**
+     * Returns the policy with the given name
+     *
+     * @param name "tail" or "red"
+     * @return a new policy
+     */
+    static DropPolicy forName(String name) {
+        switch (name) {
+            case "tail":
+                return new TailDropPolicy();
+            case "red":
+                return new RedDropPolicy();
+            default:
+                throw new IllegalArgumentException("Unknown drop policy " + name);
+        }
+    }
+}
@@ -0,0 +1,37 @@
+/**
+ * Always allows the full window, i.e. no congestion control. Only meant for links nobody else uses.
+ */
+class FixedCongestionController implements CongestionController {
+    private final int window;
+
+    /**
+     * Constructs a controller with a constant window
+     *
+     * @param window the number of segments which may always be in flight
+     */
+    FixedCongestionController(int window) {
+        this.window = window;
+    }
+
+    @Override
+    public int window() {
+        return window;
+    }
+
+    @Override
+    public void onAck(int newlyAcked) {
+    }
+
+    @Override
+    public void onLoss() {
+    }
+
+    @Override
+    public void onTimeout() {
+    }
+
+    @Override
+    public String toString() {
+        return "cwnd=" + window;
+    }
+}
@@ -0,0 +1,239 @@
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The forwarding plane of a rover: one thread reads JPackets off a socket and hands them to a fixed number of worker
+ * threads, which forward them or deliver them locally. What the workers send goes through an OutputQueue per next hop.
+ * <p>
+ * The worker of a packet is picked by a hash of its source and destination, so every packet of a flow is handled by
+ * the same worker in the order it arrived, while different flows are spread over all the workers. Packets are read
+ * into buffers from a pool the workers give them back to, so nothing is allocated per packet. When a worker falls
+ * behind, packets for it are dropped once its queue is full, just like a full socket buffer would drop them, instead
+ * of holding up the flows of the other workers.
+ * <p>
+ * A forwarded packet is sent from the buffer it was received into, it only changes hands: from the receiving thread
+ * to a worker to the output queue of its next hop, which gives it back to the pool once it's sent.
+ */
+class ForwardingEngine {
+    private final static Logger LOGGER = Logger.getLogger("FORWARDING");
+
+    /**
+     * What the workers do with every packet
+     */
+    interface PacketHandler {
+        /**
+         * Handles a packet. Called on the worker thread.
+         *
+         * @param worker the worker handling the packet, whose scratch objects the handler may use
+         * @param packet the packet, its buffer starts at index 0
+         * @param length the length of the packet
+         * @return true if the packet was handed to send(), false if its buffer can be reused right away
+         * @throws IOException if the packet can't be processed
+         */
+        boolean handle(Worker worker, Packet packet, int length) throws IOException;
+    }
+
+    // Full output queues of this many next hops can be buffered before the receiving thread has to wait for them
+    private final static int PROVISIONED_NEXT_HOPS = 4;
+
+    private final DatagramSocket socket;
+    private final PacketHandler handler;
+    private final Worker[] workers;
+    private final BlockingQueue<Packet> freePackets;
+    private final int outputQueueSize;
+    private final String dropPolicy;
+    // Copied on write, next hops are few and rarely added
+    private volatile OutputQueue[] outputQueues = new OutputQueue[0];
+
+    /**
+     * Constructs and starts the engine
+     *
+     * @param name            prefix of the names of its threads
+     * @param socket          the socket to read packets from, and to send with
+     * @param workers         the number of worker threads
+     * @param queueSize       the number of packets which may wait for each worker
+     * @param packetSize      the size of the largest packet
+     * @param outputQueueSize the number of packets which may wait for each next hop
+     * @param dropPolicy      the name of the DropPolicy of the output queues
+     * @param handler         what the workers do with every packet
+     */
+    ForwardingEngine(String name, DatagramSocket socket, int workers, int queueSize, int packetSize,
+                     int outputQueueSize, String dropPolicy, PacketHandler handler) {
+        this.socket = socket;
+        this.handler = handler;
+        this.workers = new Worker[workers];
+        this.outputQueueSize = outputQueueSize;
+        this.dropPolicy = dropPolicy;
+        // Enough for full worker queues, a packet being handled by every worker, the one being received and a few
+        // full output queues. Beyond that the receiving thread waits, and the backlog piles up in the socket
+        freePackets = new ArrayBlockingQueue<>(workers * (queueSize + 1) + 1 + PROVISIONED_NEXT_HOPS * outputQueueSize);
+        while (freePackets.remainingCapacity() > 0) {
+            freePackets.add(new Packet(packetSize));
+        }
+
+        for (int i = 0; i < workers; i++) {
+            this.workers[i] = new Worker(name + " Worker " + i, queueSize);
+            this.workers[i].start();
+        }
+        new Thread(this::receive, name + " Receiver").start();
+    }
+
+    /**
+     * Queues a packet for its next hop. The packet's datagram has to be addressed and sized already.
+     *
+     * @param packet    a packet received by the engine or taken with poll()
+     * @param nextHopIp the next hop packed into an int
+     * @return true if the packet was queued, false if it was dropped and still belongs to the caller
+     */
+    boolean send(Packet packet, int nextHopIp) {
+        return outputQueue(nextHopIp).offer(packet);
+    }
+
+    /**
+     * Takes a free packet, for a worker which wants to send a packet of its own
+     *
+     * @return a packet, null if all of them are in use
+     */
+    Packet poll() {
+        return freePackets.poll();
+    }
+
+    /**
+     * Gives back a packet taken with poll() which wasn't handed to send()
+     *
+     * @param packet the packet
+     */
+    void release(Packet packet) {
+        freePackets.add(packet);
+    }
+
+    /**
+     * @return the output queues of all the next hops used so far
+     */
+    OutputQueue[] getOutputQueues() {
+        return outputQueues;
+    }
+
+    private OutputQueue outputQueue(int nextHopIp) {
+        for (OutputQueue outputQueue : outputQueues) {
+            if (outputQueue.nextHopIp == nextHopIp) {
+                return outputQueue;
+            }
+        }
+        return addOutputQueue(nextHopIp);
+    }
+
+    private synchronized OutputQueue addOutputQueue(int nextHopIp) {
+        OutputQueue[] queues = outputQueues;
+        for (OutputQueue outputQueue : queues) {
+            if (outputQueue.nextHopIp == nextHopIp) {
+                return outputQueue;
+            }
+        }
+        OutputQueue outputQueue = new OutputQueue(nextHopIp, socket, outputQueueSize, DropPolicy.forName(dropPolicy),
+                this::release);
+        queues = Arrays.copyOf(queues, queues.length + 1);
+        queues[queues.length - 1] = outputQueue;
+        outputQueues = queues;
+        return outputQueue;
+    }
+
+    /**
+     * Loop run by the receiving thread: reads packets and queues them for the worker of their flow
+     */
+    private void receive() {
+        try {
+            while (true) {
+                Packet packet = freePackets.take();
+                packet.datagram.setLength(packet.data.length);
+                socket.receive(packet.datagram);
+                int length = packet.datagram.getLength();
+
+                if (!JPacketView.hasAddresses(packet.buffer, 0, length) ||
+                        !workers[workerIndex(packet, workers.length)].queue.offer(packet)) {
+                    freePackets.add(packet);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.exit(42);
+        }
+    }
+
+    /**
+     * Returns the worker of a packet's flow. Both addresses are mixed so that a hub's transfers, which share a
+     * destination or a source, still spread over all the workers.
+     *
+     * @param packet  the packet
+     * @param workers the number of workers
+     * @return the index of the worker
+     */
+    private static int workerIndex(Packet packet, int workers) {
+        int hash = JPacketView.peekSourceIp(packet.buffer, 0) * 0x9E3779B9 ^ JPacketView.peekDestIp(packet.buffer, 0);
+        return Math.floorMod(hash ^ (hash >>> 16), workers);
+    }
+
+    /**
+     * A buffer a packet is received into, together with the datagram receiving into it
+     */
+    static class Packet {
+        final byte[] data;
+        final ByteBuffer buffer;
+        final DatagramPacket datagram; // receives the packet, and sends it once it's addressed
+
+        private Packet(int size) {
+            data = new byte[size];
+            buffer = ByteBuffer.wrap(data);
+            datagram = new DatagramPacket(data, size);
+        }
+    }
+
+    /**
+     * A worker thread with its queue of packets and the objects its handler reuses for every packet
+     */
+    class Worker extends Thread {
+        final JPacketView view = new JPacketView();
+        final RouteCache routeCache = new RouteCache();
+        final byte[] sackBitmap = new byte[JPacketUtil.MAX_SACK_BYTES];
+        private final BlockingQueue<Packet> queue;
+
+        private Worker(String name, int queueSize) {
+            super(name);
+            queue = new ArrayBlockingQueue<>(queueSize);
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    Packet packet = queue.take();
+                    boolean sent = false;
+                    try {
+                        sent = handler.handle(this, packet, packet.datagram.getLength());
+                    } catch (RuntimeException e) {
+                        // A bad packet must not take the worker, and with it every flow hashed to it, down
+                        LOGGER.log(Level.WARNING, getName() + " failed to handle a packet", e);
+                    } finally {
+                        if (!sent) {
+                            freePackets.add(packet);
+                        }
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (IOException e) {
+                e.printStackTrace();
+                System.exit(42);
+            }
+        }
+    }
+}
@@ -0,0 +1,65 @@
+import java.net.InetAddress;
+
+/**
+ * An immutable copy of the reachable routes, used by the forwarding plane.
+ * <p>
+ * The control plane builds a new snapshot from the RoutingTable whenever the table changes and publishes it
+ * through a volatile field. Forwarding threads only ever read a snapshot, so they take no locks and always see a
+ * next hop and metric which belong together, no matter how much the table churns meanwhile.
+ */
+class ForwardingSnapshot {
+    static final int NO_ROUTE = -1;
+
+    final long version; // the version of the routing table this snapshot was built from
+    private final PrefixTrie prefixes; // maps every subnet to its route's index + 1
+    private final int[] nextHops;
+    private final byte[] metrics;
+    private final InetAddress[] nextHopAddresses;
+
+    /**
+     * Constructs a snapshot. Only called by RoutingTable, which hands over arrays nobody else holds.
+     *
+     * @param version          the version of the routing table
+     * @param prefixes         the subnets of the routes mapped to their index + 1
+     * @param nextHops         the next hop of every route
+     * @param metrics          the metric of every route
+     * @param nextHopAddresses the next hop of every route as an InetAddress, ready to be put in a DatagramPacket
+     */
+    ForwardingSnapshot(long version, PrefixTrie prefixes, int[] nextHops, byte[] metrics,
+                       InetAddress[] nextHopAddresses) {
+        this.version = version;
+        this.prefixes = prefixes;
+        this.nextHops = nextHops;
+        this.metrics = metrics;
+        this.nextHopAddresses = nextHopAddresses;
+    }
+
+    /**
+     * Returns the route with the longest subnet containing the address
+     *
+     * @param address the address to look up
+     * @return the index of the route, NO_ROUTE if no route contains the address
+     */
+    int lookup(int address) {
+        return prefixes.lookup(address) - 1;
+    }
+
+    int nextHop(int route) {
+        return nextHops[route];
+    }
+
+    byte metric(int route) {
+        return metrics[route];
+    }
+
+    InetAddress nextHopAddress(int route) {
+        return nextHopAddresses[route];
+    }
+
+    /**
+     * @return the number of routes in the snapshot
+     */
+    int size() {
+        return nextHops.length;
+    }
+}
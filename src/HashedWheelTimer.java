@@ -0,0 +1,178 @@
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A hashed timing wheel which runs any number of timeouts on a single thread.
+ * <p>
+ * Time is divided into ticks of a fixed duration and every timeout is hashed into the bucket of the tick it expires
+ * in. Scheduling and cancelling are O(1) and on every tick only the timeouts in the current bucket are looked at.
+ * Tasks run on the wheel's thread, so they should be short.
+ * <p>
+ * The precision is one tick, which is plenty for timeouts measured in seconds.
+ */
+class HashedWheelTimer {
+    private final static Logger LOGGER = Logger.getLogger("TIMER");
+
+    private final long tickMillis;
+    private final Bucket[] wheel;
+    private final int mask;
+    private final long startTime;
+    // Timeouts are handed over to the worker through this queue, so only the worker touches the buckets
+    private final Queue<Timeout> pendingTimeouts = new ConcurrentLinkedQueue<>();
+    private long tick; // only accessed by the worker thread
+
+    /**
+     * Constructs and starts the timer
+     *
+     * @param name          name of the thread running the timer
+     * @param tickMillis    the duration of a single tick in milliseconds
+     * @param ticksPerWheel the number of buckets in the wheel. Rounded up to a power of 2
+     */
+    HashedWheelTimer(String name, long tickMillis, int ticksPerWheel) {
+        int size = Integer.highestOneBit(Math.max(ticksPerWheel, 1) * 2 - 1);
+        this.tickMillis = tickMillis;
+        this.wheel = new Bucket[size];
+        this.mask = size - 1;
+        for (int i = 0; i < size; i++) {
+            wheel[i] = new Bucket();
+        }
+        startTime = System.nanoTime();
+
+        new Thread(this::work, name).start();
+    }
+
+    /**
+     * Schedules the task to be run once after the given delay
+     *
+     * @param task        the task to run
+     * @param delayMillis the delay in milliseconds
+     * @return a handle which can be used to cancel the task
+     */
+    Timeout schedule(Runnable task, long delayMillis) {
+        long deadlineTick = (elapsedMillis() + Math.max(delayMillis, 0) + tickMillis - 1) / tickMillis;
+        Timeout timeout = new Timeout(task, deadlineTick);
+        pendingTimeouts.add(timeout);
+        return timeout;
+    }
+
+    /**
+     * Loop run by the worker thread: waits for every tick and expires the timeouts in its bucket
+     */
+    private void work() {
+        while (true) {
+            long sleepMillis = (tick + 1) * tickMillis - elapsedMillis();
+            if (sleepMillis > 0) {
+                try {
+                    Thread.sleep(sleepMillis);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+
+            transferPendingTimeouts();
+            wheel[(int) (tick & mask)].expireTimeouts();
+            tick += 1;
+        }
+    }
+
+    /**
+     * Moves the newly scheduled timeouts into their buckets
+     */
+    private void transferPendingTimeouts() {
+        Timeout timeout;
+        while ((timeout = pendingTimeouts.poll()) != null) {
+            if (timeout.cancelled) {
+                continue;
+            }
+            // A timeout which is already due goes into the current bucket
+            long expiryTick = Math.max(timeout.deadlineTick, tick);
+            timeout.remainingRounds = (expiryTick - tick) / wheel.length;
+            wheel[(int) (expiryTick & mask)].add(timeout);
+        }
+    }
+
+    private long elapsedMillis() {
+        return (System.nanoTime() - startTime) / 1_000_000;
+    }
+
+    /**
+     * Handle to a scheduled task
+     */
+    static class Timeout {
+        private final Runnable task;
+        private final long deadlineTick;
+        private long remainingRounds;
+        private volatile boolean cancelled;
+        private Timeout prev, next;
+
+        private Timeout(Runnable task, long deadlineTick) {
+            this.task = task;
+            this.deadlineTick = deadlineTick;
+        }
+
+        /**
+         * Cancels the task. The timeout is unlinked from its bucket the next time the wheel passes over it.
+         */
+        void cancel() {
+            cancelled = true;
+        }
+    }
+
+    /**
+     * A doubly linked list of the timeouts hashed to one tick
+     */
+    private static class Bucket {
+        private Timeout head, tail;
+
+        private void add(Timeout timeout) {
+            timeout.prev = tail;
+            timeout.next = null;
+            if (tail == null) {
+                head = timeout;
+            } else {
+                tail.next = timeout;
+            }
+            tail = timeout;
+        }
+
+        private void remove(Timeout timeout) {
+            if (timeout.prev == null) {
+                head = timeout.next;
+            } else {
+                timeout.prev.next = timeout.next;
+            }
+            if (timeout.next == null) {
+                tail = timeout.prev;
+            } else {
+                timeout.next.prev = timeout.prev;
+            }
+            timeout.prev = timeout.next = null;
+        }
+
+        /**
+         * Runs the timeouts in this bucket which are due in this round and drops the cancelled ones
+         */
+        private void expireTimeouts() {
+            Timeout timeout = head;
+            while (timeout != null) {
+                Timeout next = timeout.next;
+                if (timeout.cancelled) {
+                    remove(timeout);
+                } else if (timeout.remainingRounds <= 0) {
+                    remove(timeout);
+                    try {
+                        timeout.task.run();
+                    } catch (RuntimeException e) {
+                        LOGGER.log(Level.WARNING, "Timer task threw an exception", e);
+                    }
+                } else {
+                    timeout.remainingRounds -= 1;
+                }
+                timeout = next;
+            }
+        }
+    }
+}
@@ -0,0 +1,57 @@
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+/**
+ * Utility class for converting IPv4 addresses between InetAddress objects and packed ints
+ */
+class IpUtils {
+
+    /**
+     * Returns the IPv4 address packed into an int (first octet in the most significant byte)
+     *
+     * @param address the address to pack
+     * @return the packed address
+     */
+    static int toInt(InetAddress address) {
+        byte[] octets = address.getAddress();
+        return toInt(octets, 0);
+    }
+
+    /**
+     * Returns the 4 bytes starting at offset packed into an int
+     *
+     * @param arr    the array holding the address
+     * @param offset the offset of the first octet
+     * @return the packed address
+     */
+    static int toInt(byte[] arr, int offset) {
+        return (arr[offset] & 0xff) << 24 | (arr[offset + 1] & 0xff) << 16 |
+                (arr[offset + 2] & 0xff) << 8 | (arr[offset + 3] & 0xff);
+    }
+
+    /**
+     * Returns an InetAddress for the packed address. No DNS lookup is done.
+     *
+     * @param address the packed address
+     * @return an InetAddress for the packed address
+     */
+    static InetAddress toInetAddress(int address) {
+        try {
+            return InetAddress.getByAddress(new byte[]{
+                    (byte) (address >>> 24), (byte) (address >>> 16), (byte) (address >>> 8), (byte) address});
+        } catch (UnknownHostException e) {
+            // Only thrown for an array of illegal length, which can't happen here
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Returns the dotted representation of the packed address
+     *
+     * @param address the packed address
+     * @return the dotted representation of the packed address
+     */
+    static String toString(int address) {
+        return (address >>> 24) + "." + (address >>> 16 & 0xff) + "." + (address >>> 8 & 0xff) + "." + (address & 0xff);
+    }
+}
@@ -6,9 +6,12 @@ import java.net.InetAddress;
 public class JPacket {
     InetAddress destAddress, sourceAddress;
     int seqNumber, ackNumber;
-    int totalSize;
+    int transferId; // chosen by the sender, tells transfers from the same source apart. ACKs echo it
+    long totalSize;
     byte flags;
     byte[] payload;
+    // Only on ACKs with the SACK flag. Bit i (most significant bit first) is set if segment ackNumber + 1 + i arrived
+    byte[] sackBitmap;
 
     /**
      * Constructs a JPacket with the given values
@@ -21,7 +24,7 @@ public class JPacket {
      * @param totalSize the total size of the file to be transferred
      */
     JPacket(InetAddress destAddress, InetAddress sourceAddress,
-            int seqNumber, int ackNumber, byte flags, byte[] payload, int totalSize) {
+            int seqNumber, int ackNumber, byte flags, byte[] payload, long totalSize) {
         this.flags = flags;
         this.destAddress = destAddress;
         this.sourceAddress = sourceAddress;
@@ -52,11 +55,22 @@ public class JPacket {
 
         res.append("Destination Address : ").append(destAddress).append("\n");
         res.append("Source Address : ").append(sourceAddress).append("\n");
+        res.append("Transfer Id : ").append(Integer.toHexString(transferId)).append("\n");
 
         res.append(JPacketUtil.isBitSet(flags, JPacketUtil.NORMAL_INDEX)?"Sequence Number : " + seqNumber + "\n":"");
 
         res.append(JPacketUtil.isBitSet(flags, JPacketUtil.ACK_INDEX)?"Acknowledgment Number : " + ackNumber + "\n" :"");
 
+        if(JPacketUtil.isBitSet(flags, JPacketUtil.SACK_INDEX) && sackBitmap != null) {
+            res.append("Selectively acknowledged : ");
+            for (int i = 0; i < sackBitmap.length * 8; i++) {
+                if (JPacketUtil.isSacked(sackBitmap, i)) {
+                    res.append(ackNumber + 1 + i).append(" ");
+                }
+            }
+            res.append("\n");
+        }
+
         if(payload != null) {
             res.append("Payload size ").append(payload.length).append("\n");
 //            res.append("Payload is ").append(payload.length == 0 ? "empty" : "\n" + BitUtils.getHexDump(payload)).append("\n");
@@ -5,12 +5,22 @@ import java.util.Arrays;
 
 /**
  * Utility class to encode and decode JPackets used in JCP (Joshi Control Protocol)
+ * <p>
+ * Sizes and file offsets are 64 bit: the SYN carries the total size in 8 bytes, and segment n starts at byte
+ * n * MAX_PAYLOAD_SIZE computed as a long. Sequence numbers stay 32 bit and never wrap, which allows files of up to
+ * Integer.MAX_VALUE segments (about 10 TB).
  */
 public class JPacketUtil {
 
     final static int ACK_INDEX = 0,
             SYN_INDEX = 1,
-            NORMAL_INDEX = 2;
+            NORMAL_INDEX = 2,
+            SACK_INDEX = 3, // Only together with ACK_INDEX, the ack number is followed by a SACK bitmap
+            MAX_SACK_BYTES = 32, // A SACK bitmap covers at most the 256 segments after the ack number
+            MAX_PAYLOAD_SIZE = 5000, // The chunks in which a file is sent, segment n starts at n * MAX_PAYLOAD_SIZE
+            MAX_DATA_HEADER_SIZE = 1 + 8 + 3 + 3 + 4 + 4, // flags + total size + dest + src + transfer id + seq
+            TOTAL_SIZE_LENGTH = 8, // The SYN's total size is 64 bit, so files of any size can be sent
+            MAX_ACK_SIZE = 1 + 3 + 3 + 4 + 4 + 1 + MAX_SACK_BYTES; // flags + dest + src + transfer id + ack + SACK
 
     /**
      * @param srcAddress the source of the JPacket
@@ -22,7 +32,7 @@ public class JPacketUtil {
      * @return the byte array packet representation of the JPacket
      */
     static byte[] jPacket2Arr(InetAddress destAddress, InetAddress srcAddress, int seqNumber, int ackNumber, byte flags,
-                              byte[] payload, int totalSize) {
+                              byte[] payload, long totalSize) {
         return jPacket2Arr(new JPacket(destAddress, srcAddress, seqNumber, ackNumber, flags, payload, totalSize));
     }
 
@@ -33,9 +43,10 @@ public class JPacketUtil {
      * @return JPacket byte array
      */
     static byte[] jPacket2Arr(JPacket jPacket) {
-        int packetSize = 1 + 3 + 3 + // flags + srcIP + dest IP
-                (isBitSet(jPacket.flags, SYN_INDEX) ? 4 : 0) + // Total payload size in bytes
+        int packetSize = 1 + 3 + 3 + 4 + // flags + srcIP + dest IP + transfer id
+                (isBitSet(jPacket.flags, SYN_INDEX) ? TOTAL_SIZE_LENGTH : 0) + // Total payload size in bytes
                 (isBitSet(jPacket.flags, ACK_INDEX) ? 4 : 0) +
+                (isBitSet(jPacket.flags, SACK_INDEX) ? 1 + jPacket.sackBitmap.length : 0) + // length + bitmap
                 // If it's not a SYN or an ACK, it's a normal transfer packet
                 (isBitSet(jPacket.flags, NORMAL_INDEX) ? 4 : 0) +
                 (isBitSet(jPacket.flags, ACK_INDEX) ? 0 : jPacket.payload.length); // No payload from an ACK
@@ -48,7 +59,7 @@ public class JPacketUtil {
 
         // If it's a SYN, add totalSize in the packet
         if (isBitSet(jPacket.flags, SYN_INDEX)) {
-            for (byte b : ByteBuffer.allocate(4).putInt(jPacket.totalSize).array()) {
+            for (byte b : ByteBuffer.allocate(TOTAL_SIZE_LENGTH).putLong(jPacket.totalSize).array()) {
                 packet[index++] = b;
             }
         }
@@ -66,6 +77,11 @@ public class JPacketUtil {
         packet[index++] = srcAddress[2];
         packet[index++] = srcAddress[3];
 
+        // Put the transfer id
+        packet[index++] = (byte) (jPacket.transferId >>> 24);
+        packet[index++] = (byte) (jPacket.transferId >>> 16);
+        packet[index++] = (byte) (jPacket.transferId >>> 8);
+        packet[index++] = (byte) jPacket.transferId;
 
         // It's a normal packet, with only a payload
         if (isBitSet(jPacket.flags, NORMAL_INDEX)) {
@@ -84,6 +100,12 @@ public class JPacketUtil {
             packet[index++] = ackNumber[1];
             packet[index++] = ackNumber[2];
             packet[index++] = ackNumber[3];
+
+            if (isBitSet(jPacket.flags, SACK_INDEX)) {
+                packet[index++] = (byte) jPacket.sackBitmap.length;
+                System.arraycopy(jPacket.sackBitmap, 0, packet, index, jPacket.sackBitmap.length);
+                index += jPacket.sackBitmap.length;
+            }
         } else { // If it's not an ACK, it'll definitely have a payload
             for (int payLoadIndex = 0; payLoadIndex < jPacket.payload.length; payLoadIndex++) {
                 packet[index++] = jPacket.payload[payLoadIndex];
@@ -94,6 +116,70 @@ public class JPacketUtil {
     }
 
 
+    /**
+     * Writes the header of a SYN or NORMAL packet, everything up to the payload, at the buffer's position. Encodes
+     * the same bytes as jPacket2Arr without creating any objects, so the payload can be sent from wherever it is.
+     *
+     * @param buffer     the buffer to write into, needs MAX_DATA_HEADER_SIZE bytes left
+     * @param flags      the flags of the packet, either SYN or NORMAL is set
+     * @param destIp     the destination of the packet packed into an int
+     * @param sourceIp   the source of the packet packed into an int
+     * @param transferId the transfer the packet belongs to
+     * @param seqNumber  the sequence number, only written for NORMAL packets
+     * @param totalSize  the total size of the file, only written for SYN packets
+     */
+    static void putDataHeader(ByteBuffer buffer, byte flags, int destIp, int sourceIp, int transferId, int seqNumber,
+                              long totalSize) {
+        buffer.put(flags);
+        if (isBitSet(flags, SYN_INDEX)) {
+            buffer.putLong(totalSize);
+        }
+        putLowThreeBytes(buffer, destIp);
+        putLowThreeBytes(buffer, sourceIp);
+        buffer.putInt(transferId);
+        if (isBitSet(flags, NORMAL_INDEX)) {
+            buffer.putInt(seqNumber);
+        }
+    }
+
+    /**
+     * Writes an ACK without a SACK bitmap at the buffer's position. Encodes the same bytes as jPacket2Arr without
+     * creating any objects. A SACK bitmap can be appended with putSackBitmap.
+     *
+     * @param buffer     the buffer to write into
+     * @param destIp     the destination of the ACK packed into an int
+     * @param sourceIp   the source of the ACK packed into an int
+     * @param transferId the transfer being acknowledged
+     * @param ackNumber  the next segment the receiver expects
+     */
+    static void putAck(ByteBuffer buffer, int destIp, int sourceIp, int transferId, int ackNumber) {
+        buffer.put(BitUtils.setBitInByte((byte) 0, ACK_INDEX));
+        putLowThreeBytes(buffer, destIp);
+        putLowThreeBytes(buffer, sourceIp);
+        buffer.putInt(transferId);
+        buffer.putInt(ackNumber);
+    }
+
+    /**
+     * Appends a SACK bitmap to the ACK which starts at the given index and ends at the buffer's position
+     *
+     * @param buffer     the buffer holding the ACK
+     * @param ackStart   the index of the ACK's first byte
+     * @param sackBitmap the bitmap, bit i (most significant bit first) marks segment ackNumber + 1 + i
+     * @param length     the number of bytes of the bitmap to append
+     */
+    static void putSackBitmap(ByteBuffer buffer, int ackStart, byte[] sackBitmap, int length) {
+        buffer.put(ackStart, BitUtils.setBitInByte(buffer.get(ackStart), SACK_INDEX));
+        buffer.put((byte) length);
+        buffer.put(sackBitmap, 0, length);
+    }
+
+    private static void putLowThreeBytes(ByteBuffer buffer, int ip) {
+        buffer.put((byte) (ip >>> 16));
+        buffer.put((byte) (ip >>> 8));
+        buffer.put((byte) ip);
+    }
+
     /**
      * Converts the given byte array to a JPacket.
      *
@@ -108,9 +194,9 @@ public class JPacketUtil {
 
         // Add the length field
         if (isBitSet(jPacket.flags, SYN_INDEX)) {
-            byte[] temp = Arrays.copyOfRange(packet, index, index + 4);
-            index += 4;
-            jPacket.totalSize = ByteBuffer.wrap(temp).getInt();
+            byte[] temp = Arrays.copyOfRange(packet, index, index + TOTAL_SIZE_LENGTH);
+            index += TOTAL_SIZE_LENGTH;
+            jPacket.totalSize = ByteBuffer.wrap(temp).getLong();
 
         }
 
@@ -130,10 +216,19 @@ public class JPacketUtil {
         jPacket.destAddress = InetAddress.getByAddress(destAddr);
         jPacket.sourceAddress = InetAddress.getByAddress(srcAddr);
 
+        jPacket.transferId = ByteBuffer.wrap(packet, index, 4).getInt();
+        index += 4;
+
         if (isBitSet(jPacket.flags, ACK_INDEX)) {
             byte[] ackNumber = Arrays.copyOfRange(packet, index, index + 4);
             index += 4;
             jPacket.ackNumber = ByteBuffer.wrap(ackNumber).getInt();
+
+            if (isBitSet(jPacket.flags, SACK_INDEX)) {
+                int sackLength = Math.min(packet[index++] & 0xff, MAX_SACK_BYTES);
+                jPacket.sackBitmap = Arrays.copyOfRange(packet, index, index + sackLength);
+                index += sackLength;
+            }
         }
 
         if (isBitSet(jPacket.flags, NORMAL_INDEX)) {
@@ -160,6 +255,17 @@ public class JPacketUtil {
         return (byteToCheck & (1 << bitIndex)) != 0;
     }
 
+    /**
+     * Returns true if the SACK bitmap marks the segment as received
+     *
+     * @param sackBitmap the SACK bitmap of an ACK
+     * @param offset     the segment's distance from the ack number, minus one
+     * @return true if the bit for the segment ackNumber + 1 + offset is set
+     */
+    static boolean isSacked(byte[] sackBitmap, int offset) {
+        return (sackBitmap[offset >>> 3] & (0x80 >>> (offset & 7))) != 0;
+    }
+
     /**
      * Driver program which tests the class
      * @param args optional user args
@@ -170,6 +276,7 @@ public class JPacketUtil {
         // Test 1 : Send an ACK
         JPacket jPacket = new JPacket(InetAddress.getByName("10.7.2.65"), InetAddress.getByName("10.54.63.23"),
                 152, 19, BitUtils.setBitInByte((byte) 0, ACK_INDEX), new byte[0], 0);
+        jPacket.transferId = 0xcafe;
         System.out.println(jPacket);
 
         byte[] arr = jPacket2Arr(jPacket);
@@ -183,13 +290,25 @@ public class JPacketUtil {
 
         System.out.println("=================================");
 
-        // Test 2: SYN packet
+        // Test 2: ACK with a SACK bitmap, segments 21, 22 and 30 arrived after the missing 19 and 20
+        jPacket = new JPacket(InetAddress.getByName("10.7.2.65"), InetAddress.getByName("10.54.63.23"),
+                0, 19, BitUtils.setBitInByte(BitUtils.setBitInByte((byte) 0, ACK_INDEX), SACK_INDEX), new byte[0], 0);
+        jPacket.sackBitmap = new byte[]{(byte) 0b0110_0000, (byte) 0b0010_0000};
+        System.out.println(jPacket);
+        arr = jPacket2Arr(jPacket);
+        BitUtils.printPacket(arr);
+        System.out.println("\nConverted back");
+        System.out.println(arr2JPacket(arr));
+
+        System.out.println("=================================");
+
+        // Test 3: SYN packet
         byte[] payload = new byte[]{1, 2, 3, 4, 5, 32};
         checkFlag(payload, SYN_INDEX);
 
         System.out.println("=================================");
 
-        // Test 3: NORMAL packet
+        // Test 4: NORMAL packet
         checkFlag(payload, NORMAL_INDEX);
 
     }
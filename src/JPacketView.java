@@ -0,0 +1,194 @@
+import java.nio.ByteBuffer;
+
+/**
+ * A flyweight which reads a JPacket in place, straight from the buffer it was received into.
+ * <p>
+ * Nothing is copied out of the packet and no objects are created: addresses are returned as packed ints and the
+ * payload as a view whose position and limit are moved over the payload. The same view should be wrapped around
+ * every received packet. Not thread safe, every thread needs its own view.
+ */
+class JPacketView {
+    private final static int PRIVATE_NETWORK = 10 << 24; // JPackets only carry the lower 3 bytes of 10.x.y.z
+
+    private ByteBuffer buffer, payload;
+    private int start, end, addressOffset, numberOffset, payloadOffset;
+    private byte flags;
+
+    /**
+     * Points the view at a packet and checks that it's well formed. The accessors may only be used if it is, since
+     * the bytes past a truncated packet are left over from whatever was in the buffer before.
+     *
+     * @param buffer the buffer holding the packet, its position and limit are not used
+     * @param start  the index of the packet's first byte
+     * @param length the length of the packet
+     * @return true if the packet is exactly one of ACK, SYN or NORMAL and long enough to hold its header
+     */
+    boolean wrap(ByteBuffer buffer, int start, int length) {
+        if (this.buffer != buffer) {
+            this.buffer = buffer;
+            payload = buffer.duplicate();
+        }
+        this.start = start;
+        end = start + length;
+        if (length < 1) {
+            flags = 0;
+            return false;
+        }
+        flags = buffer.get(start);
+        addressOffset = start + destOffset(flags);
+        numberOffset = addressOffset + 3 + 3 + 4; // dest + src + transfer id
+        payloadOffset = numberOffset + (isNormal() ? 4 : 0);
+
+        int types = (isAck() ? 1 : 0) + (isSyn() ? 1 : 0) + (isNormal() ? 1 : 0);
+        int headerEnd = isAck() ? numberOffset + 4 : payloadOffset;
+        return types == 1 && (isAck() || !isSack()) && end >= headerEnd;
+    }
+
+    /**
+     * Returns the offset of the 3 destination bytes from the start of a packet. Only depends on the flags, which
+     * lets a router find the destination without parsing anything else.
+     *
+     * @param flags the flags of the packet
+     * @return the offset of the destination
+     */
+    static int destOffset(byte flags) {
+        return 1 + (JPacketUtil.isBitSet(flags, JPacketUtil.SYN_INDEX) ? JPacketUtil.TOTAL_SIZE_LENGTH : 0);
+    }
+
+    /**
+     * Reads only the destination of a packet, without wrapping a view around it. Lets a router decide whether a
+     * packet is in transit by touching just its flags and three address bytes.
+     *
+     * @param buffer the buffer holding the packet
+     * @param start  the index of the packet's first byte
+     * @return the destination packed into an int
+     */
+    static int peekDestIp(ByteBuffer buffer, int start) {
+        return readAddress(buffer, start + destOffset(buffer.get(start)));
+    }
+
+    /**
+     * Reads only the source of a packet, without wrapping a view around it
+     *
+     * @param buffer the buffer holding the packet
+     * @param start  the index of the packet's first byte
+     * @return the source packed into an int
+     */
+    static int peekSourceIp(ByteBuffer buffer, int start) {
+        return readAddress(buffer, start + destOffset(buffer.get(start)) + 3);
+    }
+
+    /**
+     * @param buffer the buffer holding the packet
+     * @param start  the index of the packet's first byte
+     * @param length the length of the packet
+     * @return true if the packet is long enough to hold its flags, destination and source
+     */
+    static boolean hasAddresses(ByteBuffer buffer, int start, int length) {
+        return length > 0 && length >= destOffset(buffer.get(start)) + 3 + 3;
+    }
+
+    byte flags() {
+        return flags;
+    }
+
+    boolean isAck() {
+        return JPacketUtil.isBitSet(flags, JPacketUtil.ACK_INDEX);
+    }
+
+    boolean isSyn() {
+        return JPacketUtil.isBitSet(flags, JPacketUtil.SYN_INDEX);
+    }
+
+    boolean isNormal() {
+        return JPacketUtil.isBitSet(flags, JPacketUtil.NORMAL_INDEX);
+    }
+
+    boolean isSack() {
+        return JPacketUtil.isBitSet(flags, JPacketUtil.SACK_INDEX);
+    }
+
+    /**
+     * @return the total size of the file, only valid for a SYN
+     */
+    long totalSize() {
+        return buffer.getLong(start + 1);
+    }
+
+    /**
+     * @return the destination packed into an int
+     */
+    int destIp() {
+        return readAddress(buffer, addressOffset);
+    }
+
+    /**
+     * @return the source packed into an int
+     */
+    int sourceIp() {
+        return readAddress(buffer, addressOffset + 3);
+    }
+
+    int transferId() {
+        return buffer.getInt(addressOffset + 6);
+    }
+
+    /**
+     * @return the sequence number, 0 for a SYN (which is segment 0)
+     */
+    int seqNumber() {
+        return isNormal() ? buffer.getInt(numberOffset) : 0;
+    }
+
+    /**
+     * @return the ack number, only valid for an ACK
+     */
+    int ackNumber() {
+        return buffer.getInt(numberOffset);
+    }
+
+    /**
+     * @return the number of bytes in the SACK bitmap, 0 if there is none. Never more than the packet holds
+     */
+    int sackLength() {
+        int bitmapOffset = numberOffset + 5; // ack number + length byte
+        if (!isAck() || !isSack() || end < bitmapOffset) {
+            return 0;
+        }
+        return Math.min(Math.min(buffer.get(numberOffset + 4) & 0xff, JPacketUtil.MAX_SACK_BYTES), end - bitmapOffset);
+    }
+
+    /**
+     * Returns true if the SACK bitmap marks the segment as received
+     *
+     * @param offset the segment's distance from the ack number, minus one. Must be below sackLength() * 8
+     * @return true if the bit for the segment ackNumber + 1 + offset is set
+     */
+    boolean isSacked(int offset) {
+        return (buffer.get(numberOffset + 5 + (offset >>> 3)) & (0x80 >>> (offset & 7))) != 0;
+    }
+
+    /**
+     * @return the length of the payload, 0 for an ACK
+     */
+    int payloadLength() {
+        return isAck() ? 0 : end - payloadOffset;
+    }
+
+    /**
+     * Returns the payload as a view of the packet's buffer. The view is reused by every call, so it is only valid
+     * until the next call.
+     *
+     * @return a buffer positioned at the payload and limited to it
+     */
+    ByteBuffer payload() {
+        payload.clear();
+        payload.position(payloadOffset).limit(payloadOffset + payloadLength());
+        return payload;
+    }
+
+    private static int readAddress(ByteBuffer buffer, int index) {
+        return PRIVATE_NETWORK | (buffer.get(index) & 0xff) << 16 | (buffer.get(index + 1) & 0xff) << 8 |
+                (buffer.get(index + 2) & 0xff);
+    }
+}
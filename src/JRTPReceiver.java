@@ -0,0 +1,299 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.BitSet;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * The receiving side of a JRTP transfer.
+ * <p>
+ * Segment 0 is the SYN, which carries the total size and the first chunk of the file. Segment n (n > 0) is the
+ * NORMAL packet with sequence number n. Every segment's position in the file is n * JPacketUtil.MAX_PAYLOAD_SIZE,
+ * so segments are written to the file where they belong as soon as they arrive, in whatever order that is. Which
+ * segments we have is kept in a bit set. Every packet is answered with a cumulative ACK carrying the first segment
+ * we don't have, together with a SACK bitmap of the segments we have after it, so the sender only needs to resend
+ * what is actually missing.
+ * <p>
+ * Which segments are safely on disk is journaled next to the output file. Whoever runs the receiver calls
+ * checkpoint() periodically from a thread of its own, and the session is checkpointed when it's closed: the file is
+ * forced to disk and the journal is rewritten, all without holding up the packets meanwhile. Every segment before
+ * the expected one is known to be there, so the journal only holds the expected sequence number and the bits of the
+ * reorder window after it, at most 8 KB however big the file is. If the rover restarts, or the sender does, a new
+ * receiver for the same output file picks up from the journal and acknowledges everything it contains. The ACK of
+ * the SYN then tells the sender where to resume. The first checkpoint after the file is complete closes it and
+ * deletes the journal.
+ * <p>
+ * A receiver handles exactly one transfer. Its methods are synchronized, so a session can be checkpointed and
+ * expired from other threads while packets arrive for it. Checkpoints do their I/O outside of that lock.
+ */
+class JRTPReceiver {
+    static final int NO_ACK = -1,
+            MAX_REORDER_DISTANCE = 1 << 16; // segments further than this ahead of the expected one are dropped
+    static final String JOURNAL_SUFFIX = ".journal";
+
+    private final FileChannel fileChannel;
+    private final Path journalPath;
+    private final Object checkpointLock = new Object(); // held for a whole checkpoint, taken before the receiver's
+    private BitSet receivedSegments = new BitSet();
+    private int segmentsSinceCheckpoint; // 0 if the journal is up to date
+    private boolean resumed;
+    private int expectedSequenceNumber = 0; // 0 means we are still waiting for the SYN
+    private int totalSegments = Integer.MAX_VALUE; // known once the SYN arrived
+    private long totalSize = -1, receivedSize;
+    private volatile long lastActivity = System.currentTimeMillis();
+
+    /**
+     * Constructs a receiver which writes the file to the given path. If a journal of an earlier attempt exists, the
+     * segments it lists are kept and the transfer resumes after them. Otherwise the file is only truncated once the
+     * SYN arrives, so a receiver started by a stray packet can't destroy a file received earlier.
+     *
+     * @param outputFilename path of the file to write
+     * @throws IOException if the file can't be opened
+     */
+    JRTPReceiver(String outputFilename) throws IOException {
+        Path outputPath = Paths.get(outputFilename);
+        journalPath = Paths.get(outputFilename + JOURNAL_SUFFIX);
+        if (canResume(outputFilename)) {
+            fileChannel = FileChannel.open(outputPath, WRITE);
+            restoreJournal();
+        } else {
+            fileChannel = FileChannel.open(outputPath, CREATE, WRITE);
+        }
+    }
+
+    /**
+     * @param outputFilename path of the file a transfer is written to
+     * @return true if an earlier attempt of the transfer left a journal, which a new receiver would resume from
+     */
+    static boolean canResume(String outputFilename) {
+        return Files.exists(Paths.get(outputFilename + JOURNAL_SUFFIX)) && Files.exists(Paths.get(outputFilename));
+    }
+
+    /**
+     * @return true if the receiver picked up segments from an earlier attempt
+     */
+    boolean isResumed() {
+        return resumed;
+    }
+
+    /**
+     * Processes a packet of the transfer. Packets which don't fit the transfer, like a SYN announcing an impossible
+     * size or a segment whose payload doesn't match its place in the file, are dropped without an answer.
+     *
+     * @param jPacket a view of the received packet, which wrap() accepted
+     * @return the ack number which should be sent back, NO_ACK if nothing should be sent
+     * @throws IOException if the file can't be written
+     */
+    synchronized int onPacket(JPacketView jPacket) throws IOException {
+        boolean isSyn = jPacket.isSyn();
+        if (!isSyn && !jPacket.isNormal() || isSyn && !isValidTotalSize(jPacket.totalSize())) {
+            return NO_ACK;
+        }
+        int sequenceNumber = jPacket.seqNumber();
+        long totalSize = isSyn ? jPacket.totalSize() : this.totalSize;
+        if (!isValidPayloadLength(sequenceNumber, jPacket.payloadLength(), totalSize)) {
+            return NO_ACK;
+        }
+        lastActivity = System.currentTimeMillis();
+
+        // Duplicates and segments which are too far ahead are only answered. The window's end is computed in long,
+        // it passes Integer.MAX_VALUE at the end of the biggest files
+        if (sequenceNumber >= expectedSequenceNumber && sequenceNumber < totalSegments &&
+                sequenceNumber < (long) expectedSequenceNumber + MAX_REORDER_DISTANCE && fileChannel.isOpen() &&
+                !receivedSegments.get(sequenceNumber)) {
+            if (isSyn) {
+                // The SYN is the first segment of a transfer which isn't resumed, whatever the file held is stale
+                fileChannel.truncate(0);
+                setTotalSize(totalSize);
+            }
+            receivedSize += jPacket.payloadLength();
+            write(jPacket.payload(), (long) sequenceNumber * JPacketUtil.MAX_PAYLOAD_SIZE);
+            receivedSegments.set(sequenceNumber);
+            expectedSequenceNumber = receivedSegments.nextClearBit(expectedSequenceNumber);
+            segmentsSinceCheckpoint += 1;
+        }
+
+        // Nothing can be acknowledged before the SYN arrived
+        return receivedSegments.get(0) ? expectedSequenceNumber : NO_ACK;
+    }
+
+    /**
+     * Fills the SACK bitmap for the next ACK
+     *
+     * @param sackBitmap the array to fill, JPacketUtil.MAX_SACK_BYTES long
+     * @return the number of bytes of the bitmap which are used, 0 if we have nothing after the expected segment
+     */
+    synchronized int fillSackBitmap(byte[] sackBitmap) {
+        // Nothing lies past the last segment, which also keeps the sum from overflowing at the end of the biggest files
+        int maxOffset = Math.min(JPacketUtil.MAX_SACK_BYTES * 8, totalSegments - expectedSequenceNumber);
+        int lastReceived = receivedSegments.previousSetBit(expectedSequenceNumber + maxOffset);
+        if (lastReceived <= expectedSequenceNumber) {
+            return 0;
+        }
+
+        int length = (lastReceived - expectedSequenceNumber - 1) / 8 + 1;
+        Arrays.fill(sackBitmap, 0, length, (byte) 0);
+        for (int segment = receivedSegments.nextSetBit(expectedSequenceNumber + 1);
+             segment >= 0 && segment <= lastReceived; segment = receivedSegments.nextSetBit(segment + 1)) {
+            int offset = segment - expectedSequenceNumber - 1;
+            sackBitmap[offset >>> 3] |= 0x80 >>> (offset & 7);
+        }
+        return length;
+    }
+
+    /**
+     * @return true once the SYN and every byte it announced have been written
+     */
+    synchronized boolean isComplete() {
+        return totalSize >= 0 && receivedSize >= totalSize;
+    }
+
+    /**
+     * @return the number of bytes which are yet to be received, -1 if the SYN hasn't arrived yet
+     */
+    synchronized long getRemainingSize() {
+        return totalSize < 0 ? -1 : totalSize - receivedSize;
+    }
+
+    /**
+     * @return the time of the last packet of the transfer, in milliseconds since the epoch
+     */
+    long getLastActivity() {
+        return lastActivity;
+    }
+
+    /**
+     * Closes the file, any packets which still arrive are only answered. The transfer is checkpointed first, so an
+     * unfinished one can be resumed later.
+     *
+     * @throws IOException if the file can't be closed
+     */
+    void close() throws IOException {
+        synchronized (checkpointLock) {
+            checkpoint();
+            fileChannel.close();
+        }
+    }
+
+    /**
+     * Makes everything received so far durable and records it in the journal, or closes the file and deletes the
+     * journal once the file is complete. Does nothing if nothing arrived since the last checkpoint.
+     * <p>
+     * Only the journal's content is copied while holding the receiver's lock, the disk is written without it. What
+     * the journal lists was written before the file is forced, so it's durable by the time the journal is. The
+     * journal is replaced atomically, so a crash leaves either the old or the new one behind.
+     *
+     * @throws IOException if the file or the journal can't be written
+     */
+    void checkpoint() throws IOException {
+        synchronized (checkpointLock) {
+            ByteBuffer journal;
+            synchronized (this) {
+                if (!fileChannel.isOpen() || segmentsSinceCheckpoint == 0 && !isComplete()) {
+                    return;
+                }
+                journal = isComplete() ? null : journal();
+                segmentsSinceCheckpoint = 0;
+            }
+
+            fileChannel.force(false);
+            if (journal == null) {
+                // Nothing is written to a complete file anymore
+                fileChannel.close();
+                Files.deleteIfExists(journalPath);
+                return;
+            }
+
+            Path temporaryPath = Paths.get(journalPath + ".tmp");
+            try (FileChannel journalChannel = FileChannel.open(temporaryPath, CREATE, WRITE, TRUNCATE_EXISTING)) {
+                while (journal.hasRemaining()) {
+                    journalChannel.write(journal);
+                }
+                journalChannel.force(false);
+            }
+            Files.move(temporaryPath, journalPath, ATOMIC_MOVE, REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * @return the content of the journal for what was received so far, ready to be written
+     */
+    private ByteBuffer journal() {
+        int windowEnd = expectedSequenceNumber + Math.min(totalSegments - expectedSequenceNumber, MAX_REORDER_DISTANCE);
+        byte[] window = receivedSegments.get(expectedSequenceNumber, windowEnd).toByteArray();
+        ByteBuffer journal = ByteBuffer.allocate(8 + 8 + 4 + window.length);
+        journal.putLong(totalSize).putLong(receivedSize).putInt(expectedSequenceNumber).put(window);
+        journal.flip();
+        return journal;
+    }
+
+    /**
+     * Loads the segments listed in the journal of an earlier attempt
+     *
+     * @throws IOException if the journal can't be read
+     */
+    private void restoreJournal() throws IOException {
+        ByteBuffer journal = ByteBuffer.wrap(Files.readAllBytes(journalPath));
+        long journaledTotalSize = journal.getLong();
+        receivedSize = journal.getLong();
+        int journaledExpectedSequenceNumber = journal.getInt();
+        BitSet window = BitSet.valueOf(journal);
+        receivedSegments.set(0, journaledExpectedSequenceNumber);
+        for (int offset = window.nextSetBit(0); offset >= 0; offset = window.nextSetBit(offset + 1)) {
+            receivedSegments.set(journaledExpectedSequenceNumber + offset);
+        }
+        if (journaledTotalSize >= 0) {
+            setTotalSize(journaledTotalSize);
+        }
+        expectedSequenceNumber = journaledExpectedSequenceNumber;
+        resumed = true;
+    }
+
+    /**
+     * @param totalSize the total size announced by a SYN
+     * @return true if the size fits into Integer.MAX_VALUE segments and agrees with what we already know
+     */
+    private boolean isValidTotalSize(long totalSize) {
+        return totalSize >= 0 && totalSize <= (long) Integer.MAX_VALUE * JPacketUtil.MAX_PAYLOAD_SIZE &&
+                (this.totalSize < 0 || this.totalSize == totalSize);
+    }
+
+    /**
+     * Checks that a segment's payload covers exactly its part of the file: every segment but the last is full, the
+     * last one holds the rest. Nothing is valid before the total size is known, the sender only sends NORMAL
+     * segments once the SYN was acknowledged.
+     *
+     * @param sequenceNumber the segment
+     * @param payloadLength  the length of its payload
+     * @param totalSize      the total size of the file, -1 if it isn't known yet
+     * @return true if the payload has the right length
+     */
+    private static boolean isValidPayloadLength(int sequenceNumber, int payloadLength, long totalSize) {
+        if (totalSize < 0) {
+            return false;
+        }
+        long remaining = totalSize - (long) sequenceNumber * JPacketUtil.MAX_PAYLOAD_SIZE;
+        return sequenceNumber >= 0 && (remaining > 0 || sequenceNumber == 0) &&
+                payloadLength == Math.min(remaining, JPacketUtil.MAX_PAYLOAD_SIZE);
+    }
+
+    private void setTotalSize(long totalSize) {
+        this.totalSize = totalSize;
+        totalSegments = (int) Math.max(1, (totalSize + JPacketUtil.MAX_PAYLOAD_SIZE - 1) / JPacketUtil.MAX_PAYLOAD_SIZE);
+    }
+
+    private void write(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += fileChannel.write(buffer, position);
+        }
+    }
+}
@@ -0,0 +1,325 @@
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.PortUnreachableException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Objects;
+import java.util.function.Function;
+import java.util.logging.Logger;
+
+import static java.nio.file.StandardOpenOption.READ;
+
+/**
+ * The sending side of a JRTP transfer, using a Go-Back-N sliding window.
+ * <p>
+ * The file is cut into segments of JPacketUtil.MAX_PAYLOAD_SIZE bytes. Segment 0 goes out as the SYN (together with
+ * the total size), segment n as the NORMAL packet with sequence number n. Up to windowSize segments are kept in
+ * flight. The receiver answers with cumulative ACKs carrying the next segment it expects. If the oldest
+ * unacknowledged segment isn't acknowledged within the retransmission timeout, every segment in flight is sent again.
+ * <p>
+ * The transfer id is derived from the file's path, size and modification time. It lets the receiver keep transfers
+ * from the same rover apart and lets us ignore ACKs of other transfers. Since a restarted sender comes up with the
+ * same id for the same file, the receiver recognizes the transfer and can resume it: the SYN is sent alone first,
+ * and its ACK carries the first segment the receiver doesn't have yet, which is where we continue.
+ * <p>
+ * The timeout adapts to the path through an RttEstimator. Following Karn's rule, only ACKs for segments which were
+ * sent exactly once produce RTT samples, and every expiry of the timer doubles the timeout.
+ * <p>
+ * How much of the window may actually be used is decided by a CongestionController, which hears about every new
+ * ACK, every loss (three duplicate ACKs) and every timeout.
+ * <p>
+ * ACKs may carry a SACK bitmap of the segments the receiver buffered past a gap. After a loss only the holes below
+ * the highest selectively acknowledged segment are resent; after a timeout every segment in flight which wasn't
+ * selectively acknowledged is. Either way the retransmissions start at the oldest unacknowledged segment and only go
+ * as far as the congestion window allows.
+ * <p>
+ * The file is memory mapped in 1 GB chunks and segments go out through a DatagramChannel connected to the next hop, with a
+ * gathering write of a small header buffer and a view of the segment in the mapped file. A payload byte is never
+ * copied on the Java heap on its way from the disk to the socket, and sending allocates nothing per segment.
+ */
+class JRTPSender {
+    private final static Logger LOGGER = Logger.getLogger("JRTP SENDER");
+    private final static int DOES_NOT_MATTER = 0,
+            MAX_CONSECUTIVE_TIMEOUTS = 20, // Give up if the receiver hasn't been heard from for this many timeouts
+            DUPLICATE_ACK_THRESHOLD = 3, // Duplicate ACKs which count as a lost segment
+            ACK_WINDOW = 64, // Big enough for any ACK
+            MAP_CHUNK_SIZE = JPacketUtil.MAX_PAYLOAD_SIZE * 200_000, // 1 GB, no segment crosses two chunks
+            PROGRESS_REPORT_INTERVAL = 5000; // How often the progress and RTT estimate are logged, in milliseconds
+
+    private final DatagramSocket ackSocket;
+    private final int dataPort, windowSize;
+    private final InetAddress destAddress;
+    private final int destIp, sourceIp;
+    private int transferId;
+    private final String fileToSend;
+    private final Function<InetAddress, InetAddress> nextHopResolver;
+    private final RttEstimator rttEstimator;
+    // When each segment in the window was first sent, whether it was sent again since and whether the receiver
+    // selectively acknowledged it, indexed by seq % windowSize
+    private final long[] sendTimes;
+    private final boolean[] retransmitted, sacked;
+
+    private final ByteBuffer header = ByteBuffer.allocateDirect(JPacketUtil.MAX_DATA_HEADER_SIZE);
+    private final ByteBuffer[] headerAndPayload = new ByteBuffer[2];
+    // The file mapped in chunks of MAP_CHUNK_SIZE bytes, since a single mapping can't exceed 2 GB. Mapped when first
+    // needed. The position and limit of a chunk are moved to the segment being sent
+    private ByteBuffer[] fileChunks;
+    private FileChannel file;
+    private DatagramChannel dataChannel;
+    private InetAddress connectedNextHop;
+    private final DatagramPacket ackPacket = new DatagramPacket(new byte[ACK_WINDOW], ACK_WINDOW);
+    private final ByteBuffer ackBuffer = ByteBuffer.wrap(ackPacket.getData());
+    private final JPacketView ack = new JPacketView(); // read in place, ACKs are never copied out of ackPacket
+    private final CongestionController congestionController;
+    private int base, nextSequenceNumber, highestSent, highestSacked, totalSegments;
+    private long totalSize;
+
+    /**
+     * Constructs a sender for one file
+     *
+     * @param dataPort             port the next hop listens on for JRTP packets
+     * @param ackSocket            socket on which the ACKs arrive
+     * @param sourceAddress        this rover's private address
+     * @param destAddress          private address of the rover receiving the file
+     * @param fileToSend           path of the file to send
+     * @param windowSize           maximum number of unacknowledged segments in flight
+     * @param congestionController decides how much of the window may be used
+     * @param initialRto           time in milliseconds after which unacknowledged segments are sent again, until the
+     *                             round trip time has been measured
+     * @param nextHopResolver      returns the next hop for a private address, null if there is no route
+     */
+    JRTPSender(int dataPort, DatagramSocket ackSocket, InetAddress sourceAddress, InetAddress destAddress,
+               String fileToSend, int windowSize, CongestionController congestionController, int initialRto,
+               Function<InetAddress, InetAddress> nextHopResolver) {
+        this.dataPort = dataPort;
+        this.ackSocket = ackSocket;
+        this.destAddress = destAddress;
+        destIp = IpUtils.toInt(destAddress);
+        sourceIp = IpUtils.toInt(sourceAddress);
+        this.fileToSend = fileToSend;
+        this.windowSize = windowSize;
+        this.congestionController = congestionController;
+        this.nextHopResolver = nextHopResolver;
+        rttEstimator = new RttEstimator(initialRto);
+        sendTimes = new long[windowSize];
+        retransmitted = new boolean[windowSize];
+        sacked = new boolean[windowSize];
+    }
+
+    /**
+     * Sends the file and returns once every segment has been acknowledged
+     *
+     * @return true if the whole file was acknowledged, false if the receiver stopped answering
+     * @throws IOException if the file can't be read or the sockets fail
+     */
+    boolean send() throws IOException {
+        try (FileChannel file = FileChannel.open(Paths.get(fileToSend), READ);
+             DatagramChannel channel = DatagramChannel.open()) {
+            totalSize = file.size();
+            if ((totalSize + JPacketUtil.MAX_PAYLOAD_SIZE - 1) / JPacketUtil.MAX_PAYLOAD_SIZE > Integer.MAX_VALUE) {
+                throw new IOException(fileToSend + " needs more segments than sequence numbers exist");
+            }
+            transferId = Objects.hash(Paths.get(fileToSend).toAbsolutePath().toString(), totalSize,
+                    Files.getLastModifiedTime(Paths.get(fileToSend)).toMillis());
+            this.file = file;
+            fileChunks = new ByteBuffer[(int) (totalSize / MAP_CHUNK_SIZE) + 1];
+            dataChannel = channel;
+            connectedNextHop = null;
+            // An empty file still needs its SYN
+            totalSegments = (int) Math.max(1, (totalSize + JPacketUtil.MAX_PAYLOAD_SIZE - 1) / JPacketUtil.MAX_PAYLOAD_SIZE);
+            base = 0;
+            nextSequenceNumber = 0;
+            highestSent = 0;
+            highestSacked = -1;
+            // Segments from here up to highestSent have been sent and are not considered lost
+            int retransmitLimit = 0;
+            int recoveryPoint = 0, duplicateAcks = 0;
+
+            long timerDeadline = 0, nextProgressReport = System.currentTimeMillis() + PROGRESS_REPORT_INTERVAL;
+            int consecutiveTimeouts = 0;
+            while (base < totalSegments) {
+                // Fill the window, as far as the congestion controller allows. Until the SYN is acknowledged we don't
+                // know where the receiver wants us to start
+                int window = base == 0 ? 1 : Math.min(windowSize, congestionController.window());
+                // In long, base + window passes Integer.MAX_VALUE at the end of the biggest files
+                while (nextSequenceNumber < totalSegments && nextSequenceNumber < (long) base + window) {
+                    int slot = nextSequenceNumber % windowSize;
+                    if (nextSequenceNumber < highestSent) {
+                        // Only resend what the receiver doesn't have and what we believe to be lost
+                        if (nextSequenceNumber >= retransmitLimit) {
+                            nextSequenceNumber = highestSent;
+                            continue;
+                        }
+                        if (sacked[slot]) {
+                            nextSequenceNumber += 1;
+                            continue;
+                        }
+                        sendSegment(nextSequenceNumber);
+                        retransmitted[slot] = true;
+                    } else {
+                        sendSegment(nextSequenceNumber);
+                        sendTimes[slot] = System.currentTimeMillis();
+                        retransmitted[slot] = false;
+                        sacked[slot] = false;
+                        highestSent = nextSequenceNumber + 1;
+                    }
+                    if (nextSequenceNumber == base) {
+                        timerDeadline = System.currentTimeMillis() + rttEstimator.getRto();
+                    }
+                    nextSequenceNumber += 1;
+                }
+
+                long wait = timerDeadline - System.currentTimeMillis();
+                if (wait <= 0) {
+                    if (++consecutiveTimeouts > MAX_CONSECUTIVE_TIMEOUTS) {
+                        LOGGER.info("No ACK from " + destAddress + " after " + MAX_CONSECUTIVE_TIMEOUTS +
+                                " timeouts. Giving up");
+                        return false;
+                    }
+                    rttEstimator.backOff();
+                    congestionController.onTimeout();
+                    LOGGER.info("ACK wait timer timed out. Going back to segment " + base + " (" + rttEstimator +
+                            " " + congestionController + ")");
+                    // Go back and resend from the oldest unacknowledged segment, as the new window allows
+                    nextSequenceNumber = base;
+                    retransmitLimit = highestSent;
+                    recoveryPoint = highestSent;
+                    duplicateAcks = 0;
+                    continue;
+                }
+
+                int ackNumber = receiveAck(wait);
+                if (ackNumber > base && ackNumber <= totalSegments) {
+                    if (ackNumber > highestSent) {
+                        // The receiver kept segments of an earlier attempt which we haven't sent yet, skip them
+                        LOGGER.info(destAddress + " already has segments up to " + ackNumber + ". Resuming from there");
+                    }
+                    // The ACK was triggered by the newest segment it covers, unless that one was selectively
+                    // acknowledged before. Past highestSent we can only tell for the SYN, which is sent alone
+                    int newestAcked = (Math.min(ackNumber, highestSent) - 1) % windowSize;
+                    if (!retransmitted[newestAcked] && !sacked[newestAcked] && (ackNumber <= highestSent || base == 0)) {
+                        rttEstimator.addSample(System.currentTimeMillis() - sendTimes[newestAcked]);
+                    }
+                    congestionController.onAck(Math.min(ackNumber, highestSent) - base);
+                    base = ackNumber;
+                    nextSequenceNumber = Math.max(nextSequenceNumber, base);
+                    highestSent = Math.max(highestSent, base);
+                    retransmitLimit = Math.max(retransmitLimit, base);
+                    duplicateAcks = 0;
+                    consecutiveTimeouts = 0;
+                    timerDeadline = System.currentTimeMillis() + rttEstimator.getRto();
+                    if (System.currentTimeMillis() >= nextProgressReport) {
+                        LOGGER.info(base + " of " + totalSegments + " segments acknowledged by " + destAddress + " (" +
+                                rttEstimator + " " + congestionController + ")");
+                        nextProgressReport = System.currentTimeMillis() + PROGRESS_REPORT_INTERVAL;
+                    }
+                } else if (ackNumber == base && base < nextSequenceNumber &&
+                        ++duplicateAcks == DUPLICATE_ACK_THRESHOLD && base >= recoveryPoint) {
+                    // Later segments get through but the base doesn't, so it was lost. React once per window
+                    congestionController.onLoss();
+                    nextSequenceNumber = base;
+                    retransmitLimit = Math.max(base + 1, highestSacked);
+                    recoveryPoint = highestSent;
+                    timerDeadline = System.currentTimeMillis() + rttEstimator.getRto();
+                }
+            }
+        }
+        LOGGER.info("All " + totalSegments + " segments of " + fileToSend + " were acknowledged (" + rttEstimator + " " +
+                congestionController + ")");
+        return true;
+    }
+
+    /**
+     * Sends the segment to the next hop towards the destination, straight from the mapped file
+     *
+     * @param sequenceNumber the segment to send
+     * @throws IOException if the socket fails
+     */
+    private void sendSegment(int sequenceNumber) throws IOException {
+        InetAddress nextHop = nextHopResolver.apply(destAddress);
+        if (nextHop == null) {
+            // The segment is covered by the retransmission timer once the route comes back
+            return;
+        }
+        if (!nextHop.equals(connectedNextHop)) {
+            // Only happens when the route changes
+            if (dataChannel.isConnected()) {
+                dataChannel.disconnect();
+            }
+            dataChannel.connect(new InetSocketAddress(nextHop, dataPort));
+            connectedNextHop = nextHop;
+        }
+
+        long offset = (long) sequenceNumber * JPacketUtil.MAX_PAYLOAD_SIZE;
+        int length = (int) Math.min(JPacketUtil.MAX_PAYLOAD_SIZE, totalSize - offset);
+        int chunk = (int) (offset / MAP_CHUNK_SIZE), offsetInChunk = (int) (offset % MAP_CHUNK_SIZE);
+        if (fileChunks[chunk] == null) {
+            long chunkStart = (long) chunk * MAP_CHUNK_SIZE;
+            fileChunks[chunk] = file.map(FileChannel.MapMode.READ_ONLY, chunkStart,
+                    Math.min(MAP_CHUNK_SIZE, totalSize - chunkStart));
+        }
+        ByteBuffer fileView = fileChunks[chunk];
+
+        header.clear();
+        if (sequenceNumber == 0) {
+            JPacketUtil.putDataHeader(header, BitUtils.setBitInByte((byte) 0, JPacketUtil.SYN_INDEX), destIp,
+                    sourceIp, transferId, DOES_NOT_MATTER, totalSize);
+        } else {
+            JPacketUtil.putDataHeader(header, BitUtils.setBitInByte((byte) 0, JPacketUtil.NORMAL_INDEX), destIp,
+                    sourceIp, transferId, sequenceNumber, DOES_NOT_MATTER);
+        }
+        header.flip();
+        fileView.clear();
+        fileView.position(offsetInChunk).limit(offsetInChunk + length);
+
+        headerAndPayload[0] = header;
+        headerAndPayload[1] = fileView;
+        try {
+            dataChannel.write(headerAndPayload);
+        } catch (PortUnreachableException e) {
+            // An earlier datagram bounced, this one is covered by the retransmission timer
+        }
+    }
+
+    /**
+     * Waits for an ACK and records the segments its SACK bitmap acknowledges
+     *
+     * @param timeout maximum time to wait in milliseconds
+     * @return the ack number, -1 if nothing arrived in time
+     * @throws IOException if the socket fails
+     */
+    private int receiveAck(long timeout) throws IOException {
+        ackSocket.setSoTimeout((int) Math.max(1, timeout));
+        ackPacket.setLength(ACK_WINDOW);
+        try {
+            ackSocket.receive(ackPacket);
+        } catch (SocketTimeoutException e) {
+            return -1;
+        }
+        if (!ack.wrap(ackBuffer, 0, ackPacket.getLength()) || !ack.isAck() || ack.transferId() != transferId) {
+            // A malformed packet, or a late ACK of an earlier transfer
+            return -1;
+        }
+
+        int ackNumber = ack.ackNumber();
+        for (int offset = 0; offset < ack.sackLength() * 8; offset++) {
+            // In long since the sum overflows an int near Integer.MAX_VALUE, below highestSent it fits an int again
+            long sequenceNumber = (long) ackNumber + 1 + offset;
+            if (sequenceNumber >= highestSent) {
+                break;
+            }
+            if (sequenceNumber >= base && ack.isSacked(offset)) {
+                sacked[(int) (sequenceNumber % windowSize)] = true;
+                highestSacked = Math.max(highestSacked, (int) sequenceNumber);
+            }
+        }
+        return ackNumber;
+    }
+}
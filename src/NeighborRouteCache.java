@@ -0,0 +1,57 @@
+/**
+ * The routes a neighbor advertised, cached to find new paths right away when another neighbor dies.
+ * <p>
+ * A neighbor's table comes in several packets and triggered updates only carry what changed, so entries are merged
+ * into the cache as they arrive. A destination the neighbor stopped advertising must not stay at its old metric
+ * though, or it would be installed the next time a route is lost. So the cache is kept in two generations: entries
+ * are put into the current one, and every time the cache expires the current generation becomes the previous one and
+ * the oldest is dropped. As long as the neighbor sends its full table more often than the cache expires, everything
+ * it still advertises is in one of the two, and anything it stopped advertising is gone after two expiries.
+ * <p>
+ * All methods are synchronized, the cache is filled by the multicast listener and read and expired by the timer.
+ */
+class NeighborRouteCache {
+    private RoutingTable current = new RoutingTable(), previous = new RoutingTable();
+
+    /**
+     * Caches an entry as the neighbor advertised it
+     *
+     * @param destination the destination IP
+     * @param subnetMask  subnet mask length of the destination
+     * @param nextHop     the neighbor's next hop for the destination
+     * @param metric      the neighbor's cost of getting to the destination
+     */
+    synchronized void put(int destination, byte subnetMask, int nextHop, byte metric) {
+        current.put(destination, subnetMask, nextHop, metric);
+    }
+
+    /**
+     * Passes the most recently advertised entry for the destination to the consumer
+     *
+     * @param destination the destination to look for
+     * @param consumer    the consumer of the entry, called while holding the cache's lock
+     * @return true if the neighbor advertised the destination recently, false if the consumer wasn't called
+     */
+    synchronized boolean get(int destination, RoutingTable.EntryConsumer consumer) {
+        return get(current, destination, consumer) || get(previous, destination, consumer);
+    }
+
+    /**
+     * Starts a new generation, dropping the entries which weren't advertised since the one before
+     */
+    synchronized void expire() {
+        previous = current;
+        current = new RoutingTable();
+    }
+
+    private static boolean get(RoutingTable table, int destination, RoutingTable.EntryConsumer consumer) {
+        synchronized (table) {
+            int slot = table.indexOf(destination);
+            if (slot < 0) {
+                return false;
+            }
+            consumer.accept(destination, table.subnetMask(slot), table.nextHop(slot), table.metric(slot));
+            return true;
+        }
+    }
+}
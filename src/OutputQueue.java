@@ -0,0 +1,186 @@
+import java.io.IOException;
+import java.net.DatagramSocket;
+import java.net.PortUnreachableException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.function.Consumer;
+import java.util.logging.Logger;
+
+/**
+ * The packets waiting to be sent to one next hop, with a thread of its own sending them.
+ * <p>
+ * Forwarding threads only queue packets here, so a next hop which can't keep up delays and drops nothing but its own
+ * traffic. The queue is bounded: a full queue drops what arrives (tail drop) and the drop policy may drop earlier.
+ * How many packets were queued, sent and dropped is counted for monitoring.
+ * <p>
+ * Control packets (ACKs, SYNs and anything else which isn't a NORMAL data segment) wait in a lane of their own which
+ * is served first, so an ACK never sits behind a queue of 5000 byte segments and the sender doesn't time out for
+ * nothing. After CONTROL_BURST control packets in a row a waiting data segment is let through, so a flood of control
+ * packets can't starve the data. The drop policy only applies to data, control packets are only dropped when their
+ * lane is full.
+ */
+class OutputQueue {
+    private final static Logger LOGGER = Logger.getLogger("OUTPUT");
+    private final static int CONTROL_BURST = 8; // control packets sent before a waiting data segment goes
+
+    final int nextHopIp;
+    private final DatagramSocket socket;
+    private final int capacity;
+    private final DropPolicy dropPolicy;
+    private final Consumer<ForwardingEngine.Packet> release;
+    private final BlockingQueue<ForwardingEngine.Packet> controlQueue, dataQueue;
+    private final Semaphore waiting = new Semaphore(0); // packets in both lanes
+    private int controlInARow; // only used by the sending thread
+    // Only written with the queue's lock held, respectively by the sending thread
+    private volatile long enqueued, sent, tailDrops, earlyDrops, controlDrops;
+
+    /**
+     * Constructs the queue and starts its sending thread
+     *
+     * @param nextHopIp  the next hop packed into an int
+     * @param socket     the socket to send with
+     * @param capacity   the number of packets each lane can hold
+     * @param dropPolicy decides which packets are dropped before the queue is full
+     * @param release    takes back a packet once it has been sent
+     */
+    OutputQueue(int nextHopIp, DatagramSocket socket, int capacity, DropPolicy dropPolicy,
+                Consumer<ForwardingEngine.Packet> release) {
+        this.nextHopIp = nextHopIp;
+        this.socket = socket;
+        this.capacity = capacity;
+        this.dropPolicy = dropPolicy;
+        this.release = release;
+        controlQueue = new ArrayBlockingQueue<>(capacity);
+        dataQueue = new ArrayBlockingQueue<>(capacity);
+
+        Thread sender = new Thread(this::send, "Output to " + IpUtils.toString(nextHopIp));
+        sender.setDaemon(true);
+        sender.start();
+    }
+
+    /**
+     * Queues a packet whose datagram is addressed to the next hop
+     *
+     * @param packet the packet to send
+     * @return true if the packet was queued, false if it was dropped and still belongs to the caller
+     */
+    synchronized boolean offer(ForwardingEngine.Packet packet) {
+        if (isControl(packet)) {
+            if (!controlQueue.offer(packet)) {
+                controlDrops++;
+                return false;
+            }
+        } else {
+            if (dropPolicy.shouldDrop(dataQueue.size(), capacity)) {
+                earlyDrops++;
+                return false;
+            }
+            if (!dataQueue.offer(packet)) {
+                tailDrops++;
+                return false;
+            }
+        }
+        enqueued++;
+        waiting.release();
+        return true;
+    }
+
+    /**
+     * @param packet a JPacket
+     * @return true unless the packet is a NORMAL data segment
+     */
+    private static boolean isControl(ForwardingEngine.Packet packet) {
+        byte flags = packet.data[0];
+        return !JPacketUtil.isBitSet(flags, JPacketUtil.NORMAL_INDEX) ||
+                JPacketUtil.isBitSet(flags, JPacketUtil.ACK_INDEX);
+    }
+
+    /**
+     * Takes the next packet to send, a control packet unless there is none or CONTROL_BURST of them just went
+     *
+     * @return the packet
+     * @throws InterruptedException if the thread was interrupted while waiting
+     */
+    private ForwardingEngine.Packet take() throws InterruptedException {
+        waiting.acquire();
+        ForwardingEngine.Packet packet = null;
+        if (controlInARow < CONTROL_BURST || dataQueue.isEmpty()) {
+            packet = controlQueue.poll();
+        }
+        if (packet == null) {
+            controlInARow = 0;
+            // Every permit stands for a queued packet, so one of the lanes has it
+            return dataQueue.poll();
+        }
+        controlInARow += 1;
+        return packet;
+    }
+
+    /**
+     * Loop run by the sending thread
+     */
+    private void send() {
+        try {
+            while (true) {
+                ForwardingEngine.Packet packet = take();
+                try {
+                    socket.send(packet.datagram);
+                } catch (PortUnreachableException e) {
+                    // The next hop isn't listening right now, the transfer's sender retransmits
+                } catch (IOException e) {
+                    LOGGER.info("Could not send to " + IpUtils.toString(nextHopIp) + ": " + e);
+                } finally {
+                    release.accept(packet);
+                }
+                sent++;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @return the number of packets waiting in both lanes
+     */
+    int depth() {
+        return controlQueue.size() + dataQueue.size();
+    }
+
+    long getEnqueued() {
+        return enqueued;
+    }
+
+    long getSent() {
+        return sent;
+    }
+
+    /**
+     * @return the number of data segments dropped because the queue was full
+     */
+    long getTailDrops() {
+        return tailDrops;
+    }
+
+    /**
+     * @return the number of packets the drop policy dropped before the queue was full
+     */
+    long getEarlyDrops() {
+        return earlyDrops;
+    }
+
+    /**
+     * @return the number of control packets dropped because their lane was full
+     */
+    long getControlDrops() {
+        return controlDrops;
+    }
+
+    @Override
+    public String toString() {
+        return "Output to " + IpUtils.toString(nextHopIp) + ": control=" + controlQueue.size() + "/" + capacity +
+                " data=" + dataQueue.size() + "/" + capacity + " enqueued=" + enqueued + " sent=" + sent +
+                " tailDrops=" + tailDrops + " earlyDrops=" + earlyDrops + " controlDrops=" + controlDrops + " (" +
+                dropPolicy + ")";
+    }
+}
@@ -0,0 +1,144 @@
+import java.util.Arrays;
+
+/**
+ * A path compressed binary trie for longest prefix matching on IPv4 addresses.
+ * <p>
+ * Only nodes which hold a prefix or where two prefixes branch off are kept, so a lookup visits one node per
+ * branching point on the path instead of one per bit. Nodes live in parallel int arrays, which keeps the trie
+ * compact.
+ * <p>
+ * Every prefix maps to an int value. 0 is used for "no value", so it can't be stored.
+ * <p>
+ * The trie only grows: it is built once for every forwarding snapshot and never changed afterwards. Not thread safe.
+ */
+class PrefixTrie {
+    static final int NO_MATCH = 0;
+    private static final int NIL = 0, ROOT = 0; // the root is never anybody's child, so its index doubles as null
+
+    private int[] keys, values, left, right;
+    private byte[] lengths;
+    private int nodeCount;
+
+    /**
+     * Constructs an empty trie
+     */
+    PrefixTrie() {
+        keys = new int[16];
+        values = new int[16];
+        left = new int[16];
+        right = new int[16];
+        lengths = new byte[16];
+        nodeCount = 1; // the root, which matches every address
+    }
+
+    /**
+     * Returns the value of the longest prefix which contains the address
+     *
+     * @param address the address to look up
+     * @return the value of the longest matching prefix, NO_MATCH if no prefix contains the address
+     */
+    int lookup(int address) {
+        int best = NO_MATCH;
+        int node = ROOT;
+        do {
+            int length = lengths[node];
+            if (((address ^ keys[node]) & mask(length)) != 0) {
+                break;
+            }
+            if (values[node] != NO_MATCH) {
+                best = values[node];
+            }
+            if (length == 32) {
+                break;
+            }
+            node = bitAt(address, length) == 0 ? left[node] : right[node];
+        } while (node != NIL);
+        return best;
+    }
+
+    /**
+     * Stores the value for the prefix, replacing any older value
+     *
+     * @param prefix the prefix, bits after the length are ignored
+     * @param length the length of the prefix (0 - 32)
+     * @param value  the value to be stored
+     */
+    void put(int prefix, int length, int value) {
+        if (value == NO_MATCH) {
+            throw new IllegalArgumentException("0 is reserved for no match");
+        }
+        prefix &= mask(length);
+
+        int node = ROOT;
+        while (true) {
+            int nodeLength = lengths[node];
+            if (nodeLength == length) {
+                values[node] = value;
+                return;
+            }
+
+            int bit = bitAt(prefix, nodeLength);
+            int child = bit == 0 ? left[node] : right[node];
+            if (child == NIL) {
+                setChild(node, bit, newNode(prefix, length, value));
+                return;
+            }
+
+            int childLength = lengths[child];
+            int common = Math.min(Integer.numberOfLeadingZeros(prefix ^ keys[child]), Math.min(length, childLength));
+            if (common == childLength) {
+                node = child;
+                continue;
+            }
+
+            // The child has to be split at the point where it differs from the new prefix
+            int splitNode;
+            if (common == length) {
+                splitNode = newNode(prefix, length, value);
+            } else {
+                splitNode = newNode(prefix & mask(common), common, NO_MATCH);
+                setChild(splitNode, bitAt(prefix, common), newNode(prefix, length, value));
+            }
+            setChild(splitNode, bitAt(keys[child], common), child);
+            setChild(node, bit, splitNode);
+            return;
+        }
+    }
+
+    private void setChild(int node, int bit, int child) {
+        if (bit == 0) {
+            left[node] = child;
+        } else {
+            right[node] = child;
+        }
+    }
+
+    private int newNode(int key, int length, int value) {
+        if (nodeCount == keys.length) {
+            int capacity = keys.length * 2;
+            keys = Arrays.copyOf(keys, capacity);
+            values = Arrays.copyOf(values, capacity);
+            left = Arrays.copyOf(left, capacity);
+            right = Arrays.copyOf(right, capacity);
+            lengths = Arrays.copyOf(lengths, capacity);
+        }
+        int node = nodeCount++;
+        keys[node] = key;
+        lengths[node] = (byte) length;
+        values[node] = value;
+        left[node] = NIL;
+        right[node] = NIL;
+        return node;
+    }
+
+    /**
+     * Returns the network mask for a prefix length, e.g. 0xffffff00 for 24
+     */
+    static int mask(int length) {
+        return length == 0 ? 0 : -1 << (32 - length);
+    }
+
+    private static int bitAt(int address, int index) {
+        return (address >>> (31 - index)) & 1;
+    }
+}
@@ -0,0 +1,122 @@
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Before/after benchmark for decoding RIP updates.
+ * <p>
+ * "Before" is the old string based decoder which built a dotted string for every address and parsed it with
+ * InetAddress.getByName. "After" walks the same packet with a reused RIPEntryCursor.
+ * <p>
+ * Usage: java RIPDecodeBenchmark [entriesPerPacket] [iterations]
+ */
+public class RIPDecodeBenchmark {
+
+    public static void main(String[] args) throws UnknownHostException {
+        int entries = args.length > 0 ? Integer.parseInt(args[0]) : RIPPacketUtil.MAX_ENTRIES_PER_PACKET;
+        int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 200_000;
+
+        RoutingTable table = new RoutingTable(entries);
+        for (int i = 0; i < entries; i++) {
+            table.put(10 << 24 | i << 8 | 1, (byte) 24, 172 << 24 | 17 << 16 | i, (byte) (i % 16));
+        }
+        // Build a single packet no matter how many entries were asked for
+        byte[] packet = new byte[RIPPacketUtil.HEADER_SIZE + entries * RIPPacketUtil.ENTRY_SIZE];
+        int offset = RIPPacketUtil.HEADER_SIZE;
+        for (byte[] splitPacket : RIPPacketUtil.getRIPPackets((byte) 2, (byte) 1, table)) {
+            System.arraycopy(splitPacket, RIPPacketUtil.HEADER_SIZE, packet, offset,
+                    splitPacket.length - RIPPacketUtil.HEADER_SIZE);
+            offset += splitPacket.length - RIPPacketUtil.HEADER_SIZE;
+        }
+
+        // Warm up both paths so the JIT has compiled them before measuring
+        for (int i = 0; i < iterations / 10; i++) {
+            legacyDecode(packet, packet.length);
+            cursorDecode(new RIPEntryCursor(), packet, packet.length);
+        }
+
+        System.out.println("Decoding a " + entries + " entry RIP update " + iterations + " times");
+        report("before (string decoder)", iterations, () -> legacyDecode(packet, packet.length).size());
+        RIPEntryCursor cursor = new RIPEntryCursor();
+        report("after (RIPEntryCursor) ", iterations, () -> cursorDecode(cursor, packet, packet.length));
+    }
+
+    /**
+     * Runs the decoder and prints the time and bytes allocated per packet
+     */
+    private static void report(String name, int iterations, Decoder decoder) throws UnknownHostException {
+        com.sun.management.ThreadMXBean threadBean =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+        long sink = 0;
+
+        long allocatedBefore = threadBean.getThreadAllocatedBytes(threadId);
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            sink += decoder.decode();
+        }
+        long elapsed = System.nanoTime() - start;
+        long allocated = threadBean.getThreadAllocatedBytes(threadId) - allocatedBefore;
+
+        System.out.printf("%s : %8.1f ns/packet  %8.1f bytes allocated/packet  (checksum %d)%n",
+                name, (double) elapsed / iterations, (double) allocated / iterations, sink);
+    }
+
+    /**
+     * Walks the packet with the cursor and sums the fields so that the JIT can't drop the reads
+     */
+    private static int cursorDecode(RIPEntryCursor cursor, byte[] packet, int packetLength) {
+        int sum = 0;
+        cursor.reset(packet, packetLength);
+        while (cursor.next()) {
+            sum += cursor.ipAddress() ^ cursor.nextHop() ^ cursor.subnetMask() ^ cursor.metric();
+        }
+        return sum;
+    }
+
+    private interface Decoder {
+        long decode() throws UnknownHostException;
+    }
+
+    /**
+     * The decoder RIPPacketUtil used before the cursor was introduced, kept here as the baseline
+     */
+    private static List<RoutingTableEntry> legacyDecode(byte[] packet, int packetLength) throws UnknownHostException {
+        int totalEntries = (packetLength - 8) / 16;
+        List<RoutingTableEntry> list = new ArrayList<>();
+        RoutingTableEntry entry;
+        int offset = 8;
+
+        for (int count = 0; count < totalEntries; count++) {
+            entry = new RoutingTableEntry();
+            entry.ipAddress = legacyIpFromPacket(packet, offset);
+            offset += 4;
+            entry.subnetMask = Byte.parseByte(legacyNextNBytes(packet, offset, 4));
+            offset += 4;
+            entry.nextHop = legacyIpFromPacket(packet, offset);
+            offset += 4;
+            entry.metric = Byte.parseByte(legacyNextNBytes(packet, offset, 4));
+            offset += 4;
+            list.add(entry);
+        }
+        return list;
+    }
+
+    private static InetAddress legacyIpFromPacket(byte[] packet, int offset) throws UnknownHostException {
+        StringBuilder res = new StringBuilder();
+        for (int i = 0; i < 4; i++) {
+            res.append(legacyNextNBytes(packet, offset + i, 1) + (i == 3 ? "" : "."));
+        }
+        return InetAddress.getByName(res.toString());
+    }
+
+    private static String legacyNextNBytes(byte[] packet, int offset, int N) {
+        long res = (long) Byte.toUnsignedInt(packet[offset]);
+        for (int i = 1; i < N; i++) {
+            res = (res << 8) + (long) Byte.toUnsignedInt(packet[offset + i]);
+        }
+        return "" + res;
+    }
+}
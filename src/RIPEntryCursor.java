@@ -0,0 +1,81 @@
+/**
+ * A flyweight which walks over the entries of a received RIP packet in place.
+ * <p>
+ * Nothing is copied out of the packet: every accessor reads straight from the receive buffer, so decoding an update
+ * creates no strings, InetAddress objects or RoutingTableEntry objects. The same cursor should be reset and reused
+ * for every packet.
+ */
+class RIPEntryCursor {
+    private byte[] packet;
+    private int offset, end;
+
+    /**
+     * Points the cursor before the first entry of the given packet
+     *
+     * @param packet       the byte array representing the packet
+     * @param packetLength the length of the payload in the packet
+     * @return this cursor
+     */
+    RIPEntryCursor reset(byte[] packet, int packetLength) {
+        this.packet = packet;
+        this.offset = RIPPacketUtil.HEADER_SIZE - RIPPacketUtil.ENTRY_SIZE;
+        this.end = RIPPacketUtil.HEADER_SIZE +
+                (packetLength - RIPPacketUtil.HEADER_SIZE) / RIPPacketUtil.ENTRY_SIZE * RIPPacketUtil.ENTRY_SIZE;
+        return this;
+    }
+
+    /**
+     * Moves the cursor to the next entry
+     *
+     * @return true if there was another entry, false if the packet is exhausted
+     */
+    boolean next() {
+        if (offset + RIPPacketUtil.ENTRY_SIZE >= end) {
+            return false;
+        }
+        offset += RIPPacketUtil.ENTRY_SIZE;
+        return true;
+    }
+
+    /**
+     * @return the command (request/update) of the packet
+     */
+    byte command() {
+        return packet[0];
+    }
+
+    /**
+     * @return the id of the rover which sent the packet
+     */
+    byte roverId() {
+        return packet[2];
+    }
+
+    /**
+     * @return the destination IP of the current entry packed into an int
+     */
+    int ipAddress() {
+        return IpUtils.toInt(packet, offset);
+    }
+
+    /**
+     * @return the subnet mask length of the current entry. Only the last byte is used since it will at max be 32
+     */
+    byte subnetMask() {
+        return packet[offset + 7];
+    }
+
+    /**
+     * @return the next hop of the current entry packed into an int
+     */
+    int nextHop() {
+        return IpUtils.toInt(packet, offset + 8);
+    }
+
+    /**
+     * @return the metric of the current entry. Only the last byte is used since it will at max be 16
+     */
+    byte metric() {
+        return packet[offset + 15];
+    }
+}
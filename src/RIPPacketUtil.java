@@ -1,9 +1,7 @@
 import java.net.InetAddress;
-import java.net.UnknownHostException;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Map;
 
 /**
  * A utility for byte encoding and decoding RIP packets.
@@ -11,119 +9,146 @@ import java.util.Map;
 public class RIPPacketUtil {
     static final byte VERSION = 2; // We will only support version 2
 
+    static final int HEADER_SIZE = 8, ENTRY_SIZE = 16,
+            MAX_ENTRIES_PER_PACKET = 25, // RFC 2453 allows at most 25 entries in a single message
+            MAX_PACKET_SIZE = HEADER_SIZE + MAX_ENTRIES_PER_PACKET * ENTRY_SIZE;
+
     /**
-     * Returns a RIPPacketUtil
+     * Returns the RIP packets carrying every entry of the table, split into datagrams of at most
+     * MAX_ENTRIES_PER_PACKET entries each. Every packet has its own header, so the receiver can apply each one as it
+     * arrives. At least one packet is always returned (even for an empty table) since it doubles as the heart beat.
      *
-     * @param command Either a request(0) or response(1)
-     * @param entries an array of routing table entries to be filled
+     * @param command      Either a request(1) or response(2)
+     * @param roverId      the id of the rover sending the packets
+     * @param routingTable the routing table to be sent
+     * @return the packets to be sent, in order
      */
-    static byte[] getRIPPacket(byte command, byte roverId, Map<InetAddress, RoutingTableEntry> entries) {
+    static List<byte[]> getRIPPackets(byte command, byte roverId, RoutingTable routingTable) {
+        PacketWriter writer = new PacketWriter(command, roverId);
+        routingTable.forEach(writer);
+        return writer.finish();
+    }
 
-        byte[] ripPacket = new byte[4 * 2 + entries.size() * 16]; //  4 * 2 bytes for the header
-        ripPacket[0] = command;
-        ripPacket[1] = VERSION;
-        // store the rover id in this byte. It's not used either way.
-        ripPacket[2] = roverId;
-        // skip 1 to keep empty
-        ripPacket[4] = 0; // TODO check
-        ripPacket[5] = 2; // 2 for IP
-        // keep route tag as empty as we won't support anything but RIP
+    /**
+     * Returns the RIP packets carrying only the entries which changed since the last update, for a triggered update.
+     * The changed entries are forgotten by the table once they are written.
+     *
+     * @param command      Either a request(1) or response(2)
+     * @param roverId      the id of the rover sending the packets
+     * @param routingTable the routing table whose changes have to be sent
+     * @return the packets to be sent in order, empty if nothing changed
+     */
+    static List<byte[]> getChangedRIPPackets(byte command, byte roverId, RoutingTable routingTable) {
+        PacketWriter writer = new PacketWriter(command, roverId);
+        routingTable.drainChanged(writer);
+        return writer.entryCount == 0 ? new ArrayList<>() : writer.finish();
+    }
+
+    /**
+     * Writes the entries it is given into packets of at most MAX_ENTRIES_PER_PACKET entries
+     */
+    private static class PacketWriter implements RoutingTable.EntryConsumer {
+        private final byte command, roverId;
+        private final List<byte[]> packets = new ArrayList<>();
+        private byte[] ripPacket;
+        private int packetOffset, entryCount;
+
+        private PacketWriter(byte command, byte roverId) {
+            this.command = command;
+            this.roverId = roverId;
+            ripPacket = newRIPPacket(command, roverId);
+            packetOffset = HEADER_SIZE;
+        }
+
+        @Override
+        public void accept(int destination, byte subnetMask, int nextHop, byte metric) {
+            if (packetOffset == MAX_PACKET_SIZE) {
+                packets.add(ripPacket);
+                ripPacket = newRIPPacket(command, roverId);
+                packetOffset = HEADER_SIZE;
+            }
 
-        int packetOffset = 8;
-        for (RoutingTableEntry entry : entries.values()) {
             // Add IP entry
-            packetOffset = addIpAddress(ripPacket, packetOffset, entry.ipAddress);
+            packetOffset = addIpAddress(ripPacket, packetOffset, destination);
             packetOffset += 3; // skip the first 3 bytes since they will be
             // 0 and the subnet mask will at max be 32
 
-            ripPacket[packetOffset] = entry.subnetMask;
+            ripPacket[packetOffset] = subnetMask;
             packetOffset += 1;
 
-            packetOffset = addIpAddress(ripPacket, packetOffset, entry.nextHop);
+            packetOffset = addIpAddress(ripPacket, packetOffset, nextHop);
 
             packetOffset += 3; // skip the first 3 bytes since they will be
             // 0 and the metric will at max be 15
-            ripPacket[packetOffset] = entry.metric;
+            ripPacket[packetOffset] = metric;
             packetOffset += 1;
+            entryCount += 1;
+        }
+
+        /**
+         * @return the written packets. The last packet is usually not full, only what was filled is kept
+         */
+        private List<byte[]> finish() {
+            packets.add(packetOffset == MAX_PACKET_SIZE ? ripPacket : Arrays.copyOf(ripPacket, packetOffset));
+            return packets;
         }
+    }
+
+    /**
+     * Returns a packet of the maximum size with only the header filled
+     *
+     * @param command Either a request(1) or response(2)
+     * @param roverId the id of the rover sending the packet
+     * @return a packet with the header filled
+     */
+    private static byte[] newRIPPacket(byte command, byte roverId) {
+        byte[] ripPacket = new byte[MAX_PACKET_SIZE];
+        ripPacket[0] = command;
+        ripPacket[1] = VERSION;
+        // store the rover id in this byte. It's not used either way.
+        ripPacket[2] = roverId;
+        // skip 1 to keep empty
+        ripPacket[4] = 0; // TODO check
+        ripPacket[5] = 2; // 2 for IP
+        // keep route tag as empty as we won't support anything but RIP
         return ripPacket;
     }
 
     /**
-     * Decode the byte representation of a string into a list of routing table entries
+     * Decode the byte representation of a string into a list of routing table entries.
+     * <p>
+     * Note: this materializes every entry and is meant for debugging. The receive path should walk the packet with
+     * a reused {@link RIPEntryCursor} instead.
      *
      * @param packet       the byte array representing the packet
      * @param packetLength the length of the payload in the packet
      * @return a list of routing table entries
-     * @throws UnknownHostException
      */
-    public static List<RoutingTableEntry> decodeRIPPacket(byte[] packet, int packetLength) throws UnknownHostException {
-        int totalEntries = (packetLength - 8) / 16;
+    public static List<RoutingTableEntry> decodeRIPPacket(byte[] packet, int packetLength) {
         List<RoutingTableEntry> list = new ArrayList<>();
-        RoutingTableEntry entry;
-        int offset = 8;
-
-        for (int count = 0; count < totalEntries; count++) {
-            entry = new RoutingTableEntry();
-            entry.ipAddress = getIpFromPacket(packet, offset);
-            offset += 4;
-
-            entry.subnetMask = Byte.parseByte(getNextNBytes(packet, offset, 4));
-            offset += 4;
-            entry.nextHop = getIpFromPacket(packet, offset);
-            offset += 4;
-            entry.metric = Byte.parseByte(getNextNBytes(packet, offset, 4));
-            offset += 4;
-            list.add(entry);
-        }
-
-        return list;
-    }
+        RIPEntryCursor cursor = new RIPEntryCursor().reset(packet, packetLength);
 
-    /**
-     * Returns the IP address as extracted from the packet
-     * @param packet the byte array representing the packet
-     * @param offset the offset from which to check
-     * @return the IP starting from the given offset
-     * @throws UnknownHostException
-     */
-    private static InetAddress getIpFromPacket(byte[] packet, int offset) throws UnknownHostException {
-        StringBuilder res = new StringBuilder();
-        for (int i = 0; i < 4; i++) {
-            res.append(getNextNBytes(packet, offset + i, 1) + (i == 3 ? "" : "."));
+        while (cursor.next()) {
+            list.add(new RoutingTableEntry(IpUtils.toInetAddress(cursor.ipAddress()), cursor.subnetMask(),
+                    IpUtils.toInetAddress(cursor.nextHop()), cursor.metric()));
         }
-        return InetAddress.getByName(res.toString());
-    }
 
-    /**
-     * Returns a string representation of the number made on N bytes.
-     *
-     * @param packet the packet array
-     * @param offset the position to start reading from
-     * @param N      the number of bytes to consider
-     * @return string representation of the number made on N bytes
-     */
-    private static String getNextNBytes(byte[] packet, int offset, int N) {
-        long res = (long) Byte.toUnsignedInt(packet[offset]);
-        for (int i = 1; i < N; i++) {
-            res = (res << 8) + (long) Byte.toUnsignedInt(packet[offset + i]);
-        }
-        return "" + res;
+        return list;
     }
 
     /**
      * Adds the ip to the packet
      * @param ripPacket the rip packet
      * @param packetOffset the offset from which to start filling
-     * @param ipToAdd the ip which has to be added
-     * @return
+     * @param ipToAdd the ip which has to be added, packed into an int
+     * @return the offset after the ip
      */
-    private static int addIpAddress(byte[] ripPacket, int packetOffset, InetAddress ipToAdd) {
-        for (byte ipSubPart : ipToAdd.getAddress()) {
-            ripPacket[packetOffset] = ipSubPart;
-            packetOffset += 1;
-        }
-        return packetOffset;
+    private static int addIpAddress(byte[] ripPacket, int packetOffset, int ipToAdd) {
+        ripPacket[packetOffset] = (byte) (ipToAdd >>> 24);
+        ripPacket[packetOffset + 1] = (byte) (ipToAdd >>> 16);
+        ripPacket[packetOffset + 2] = (byte) (ipToAdd >>> 8);
+        ripPacket[packetOffset + 3] = (byte) ipToAdd;
+        return packetOffset + 4;
     }
 
     /**
@@ -143,20 +168,33 @@ public class RIPPacketUtil {
      */
     public static void main(String[] args) throws Exception {
         // Test for RIP packet util
-        RoutingTableEntry packet = new RoutingTableEntry(InetAddress.getByName("255.255.255.255"),
-                (byte) 32, InetAddress.getByName("255.0.255.0"), (byte) 15);
-
-        RoutingTableEntry packet1 = new RoutingTableEntry(InetAddress.getByName("123.221.1.55"),
-                (byte) 11, InetAddress.getByName("1.0.1.1"), (byte) 29);
-
-        Map<InetAddress, RoutingTableEntry> routingTableEntries = new HashMap<>();
-        routingTableEntries.put(InetAddress.getByName("255.255.255.255"), packet);
-        routingTableEntries.put(InetAddress.getByName("123.221.1.55"), packet1);
-        byte[] ripByteRepresentation = getRIPPacket((byte) 1, (byte) 12, routingTableEntries);
+        RoutingTable routingTable = new RoutingTable();
+        routingTable.put(IpUtils.toInt(InetAddress.getByName("255.255.255.255")),
+                (byte) 32, IpUtils.toInt(InetAddress.getByName("255.0.255.0")), (byte) 15);
+        routingTable.put(IpUtils.toInt(InetAddress.getByName("123.221.1.55")),
+                (byte) 11, IpUtils.toInt(InetAddress.getByName("1.0.1.1")), (byte) 29);
+        byte[] ripByteRepresentation = getRIPPackets((byte) 1, (byte) 12, routingTable).get(0);
 
         printPacket(ripByteRepresentation);
 
         System.out.println(decodeRIPPacket(ripByteRepresentation, ripByteRepresentation.length));
+
+        // Test for splitting a large table across packets
+        for (int i = 0; i < 60; i++) {
+            routingTable.put(10 << 24 | i << 8 | 1, (byte) 24, 10 << 24 | i << 8 | 1, (byte) 1);
+        }
+        int decodedEntries = 0;
+        for (byte[] splitPacket : getRIPPackets((byte) 2, (byte) 12, routingTable)) {
+            decodedEntries += decodeRIPPacket(splitPacket, splitPacket.length).size();
+            System.out.println("Packet of " + splitPacket.length + " bytes");
+        }
+        System.out.println(routingTable.size() + " entries were sent, " + decodedEntries + " were decoded");
+
+        // Test for a triggered update only carrying the changed entry
+        routingTable.clearChanged();
+        routingTable.put(10 << 24 | 5 << 8 | 1, (byte) 24, 10 << 24 | 5 << 8 | 1, (byte) 3);
+        byte[] triggeredUpdate = getChangedRIPPackets((byte) 2, (byte) 12, routingTable).get(0);
+        System.out.println("Triggered update : " + decodeRIPPacket(triggeredUpdate, triggeredUpdate.length));
     }
 
 }
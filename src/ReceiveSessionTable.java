@@ -0,0 +1,159 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Predicate;
+
+/**
+ * The transfers a rover is receiving, keyed by the source's private address and the transfer id.
+ * <p>
+ * Keys are packed into a long (address in the upper, transfer id in the lower 32 bits) and kept in a primitive
+ * array with open addressing and linear probing, so looking up the session of a packet neither boxes the key nor
+ * creates any other object. Removal shifts the following entries back instead of leaving tombstones.
+ * <p>
+ * All methods are synchronized, the table is read by the receiving threads and swept by the timer threads.
+ */
+class ReceiveSessionTable {
+    private static final float MAX_LOAD_FACTOR = 0.5f;
+
+    private long[] keys;
+    private JRTPReceiver[] receivers; // null marks a free slot
+    private int size, mask;
+
+    /**
+     * Constructs an empty table
+     */
+    ReceiveSessionTable() {
+        keys = new long[16];
+        receivers = new JRTPReceiver[16];
+        mask = 15;
+    }
+
+    /**
+     * Returns the key of a transfer
+     *
+     * @param sourceIp   the private address of the sender packed into an int
+     * @param transferId the id the sender chose for the transfer
+     * @return the key of the transfer
+     */
+    static long key(int sourceIp, int transferId) {
+        return (long) sourceIp << 32 | (transferId & 0xffffffffL);
+    }
+
+    /**
+     * @param key the key of a transfer
+     * @return the session of the transfer, null if there is none
+     */
+    synchronized JRTPReceiver get(long key) {
+        for (int slot = hash(key) & mask; receivers[slot] != null; slot = (slot + 1) & mask) {
+            if (keys[slot] == key) {
+                return receivers[slot];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Adds a session, replacing any older session of the same transfer
+     *
+     * @param key      the key of the transfer
+     * @param receiver the session
+     */
+    synchronized void put(long key, JRTPReceiver receiver) {
+        if (size + 1 > keys.length * MAX_LOAD_FACTOR) {
+            resize();
+        }
+        int slot = hash(key) & mask;
+        while (receivers[slot] != null && keys[slot] != key) {
+            slot = (slot + 1) & mask;
+        }
+        if (receivers[slot] == null) {
+            size += 1;
+        }
+        keys[slot] = key;
+        receivers[slot] = receiver;
+    }
+
+    /**
+     * Removes every session the filter accepts
+     *
+     * @param filter decides which sessions are removed, called while holding the table's lock
+     */
+    synchronized void removeIf(Predicate<JRTPReceiver> filter) {
+        int slot = 0;
+        while (slot < receivers.length) {
+            if (receivers[slot] != null && filter.test(receivers[slot])) {
+                // The slot is refilled by a following entry, which has to be looked at too
+                removeSlot(slot);
+            } else {
+                slot += 1;
+            }
+        }
+    }
+
+    /**
+     * @param receiver a session
+     */
+    synchronized void remove(JRTPReceiver receiver) {
+        removeIf(session -> session == receiver);
+    }
+
+    /**
+     * @return a copy of the sessions, which can be worked on without holding the table
+     */
+    synchronized List<JRTPReceiver> sessions() {
+        List<JRTPReceiver> sessions = new ArrayList<>(size);
+        for (JRTPReceiver receiver : receivers) {
+            if (receiver != null) {
+                sessions.add(receiver);
+            }
+        }
+        return sessions;
+    }
+
+    /**
+     * @return the number of sessions
+     */
+    synchronized int size() {
+        return size;
+    }
+
+    private void removeSlot(int slot) {
+        receivers[slot] = null;
+        size -= 1;
+        // Move back every entry of the cluster which can't be found anymore past the new hole
+        int hole = slot;
+        for (int next = (slot + 1) & mask; receivers[next] != null; next = (next + 1) & mask) {
+            int home = hash(keys[next]) & mask;
+            // The entry may move into the hole unless its home lies cyclically between the hole and its slot
+            if (((next - home) & mask) >= ((next - hole) & mask)) {
+                keys[hole] = keys[next];
+                receivers[hole] = receivers[next];
+                receivers[next] = null;
+                hole = next;
+            }
+        }
+    }
+
+    private void resize() {
+        long[] oldKeys = keys;
+        JRTPReceiver[] oldReceivers = receivers;
+        keys = new long[oldKeys.length * 2];
+        receivers = new JRTPReceiver[oldKeys.length * 2];
+        mask = keys.length - 1;
+        for (int oldSlot = 0; oldSlot < oldKeys.length; oldSlot++) {
+            if (oldReceivers[oldSlot] == null) {
+                continue;
+            }
+            int slot = hash(oldKeys[oldSlot]) & mask;
+            while (receivers[slot] != null) {
+                slot = (slot + 1) & mask;
+            }
+            keys[slot] = oldKeys[oldSlot];
+            receivers[slot] = oldReceivers[oldSlot];
+        }
+    }
+
+    private static int hash(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+}
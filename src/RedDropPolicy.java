@@ -0,0 +1,50 @@
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Random Early Detection, as described by Floyd and Jacobson.
+ * <p>
+ * The policy follows an average of the queue depth. Below MIN_THRESHOLD of the capacity nothing is dropped and above
+ * MAX_THRESHOLD everything is. In between, packets are dropped with a probability which grows linearly up to
+ * MAX_PROBABILITY, spread out by the number of packets accepted since the last drop. Senders going through the queue
+ * see a loss and back off before the queue overflows, and since the drops hit flows at random rather than in bursts,
+ * they don't all back off at once.
+ */
+class RedDropPolicy implements DropPolicy {
+    private final static double WEIGHT = 0.002, // gain of the average depth
+            MIN_THRESHOLD = 0.25, // of the capacity
+            MAX_THRESHOLD = 0.75,
+            MAX_PROBABILITY = 0.1;
+
+    private double averageDepth;
+    private int acceptedSinceDrop;
+
+    @Override
+    public boolean shouldDrop(int depth, int capacity) {
+        averageDepth = (1 - WEIGHT) * averageDepth + WEIGHT * depth;
+        double minDepth = MIN_THRESHOLD * capacity, maxDepth = MAX_THRESHOLD * capacity;
+
+        if (averageDepth < minDepth) {
+            acceptedSinceDrop = 0;
+            return false;
+        }
+        if (averageDepth >= maxDepth) {
+            acceptedSinceDrop = 0;
+            return true;
+        }
+
+        double probability = MAX_PROBABILITY * (averageDepth - minDepth) / (maxDepth - minDepth);
+        // Spread the drops evenly instead of letting them cluster
+        double spreadProbability = probability / Math.max(1 - acceptedSinceDrop * probability, probability);
+        if (ThreadLocalRandom.current().nextDouble() < spreadProbability) {
+            acceptedSinceDrop = 0;
+            return true;
+        }
+        acceptedSinceDrop += 1;
+        return false;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("red avg=%.1f", averageDepth);
+    }
+}
@@ -0,0 +1,51 @@
+import java.util.Arrays;
+
+/**
+ * A small cache of recent forwarding decisions, one per forwarding thread.
+ * <p>
+ * JPackets only carry the lower 24 bits of a 10.x.y.z address, so that id is all the cache is keyed by. It is
+ * direct mapped: every id has one slot, holding the id and its route packed into a long, so a hit costs a single
+ * array read instead of a walk through the snapshot's prefix trie. Route indexes belong to the snapshot they were
+ * looked up in, so the whole cache is dropped as soon as the routing table's version changes.
+ * <p>
+ * Not thread safe, every thread needs its own cache.
+ */
+class RouteCache {
+    private final static int SIZE = 1024; // a power of 2, hubs see a few hundred destinations at most
+    private final static long EMPTY = -1; // no 24 bit id has all of the upper 32 bits set
+
+    private final long[] entries = new long[SIZE];
+    private long version = -1;
+
+    /**
+     * Constructs an empty cache
+     */
+    RouteCache() {
+        Arrays.fill(entries, EMPTY);
+    }
+
+    /**
+     * Returns the route towards an address, looking it up in the snapshot if it isn't cached
+     *
+     * @param snapshot the current snapshot, the route is only valid for it
+     * @param address  the address packed into an int
+     * @return the index of the route, ForwardingSnapshot.NO_ROUTE if there is none
+     */
+    int lookup(ForwardingSnapshot snapshot, int address) {
+        if (snapshot.version != version) {
+            Arrays.fill(entries, EMPTY);
+            version = snapshot.version;
+        }
+
+        int id = address & 0xffffff;
+        int slot = (id ^ (id >>> 10) ^ (id >>> 20)) & (SIZE - 1);
+        long entry = entries[slot];
+        if ((int) (entry >>> 32) == id) {
+            return (int) entry;
+        }
+
+        int route = snapshot.lookup(address);
+        entries[slot] = (long) id << 32 | (route & 0xffffffffL);
+        return route;
+    }
+}
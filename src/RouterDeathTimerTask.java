@@ -1,23 +1,66 @@
 import java.io.IOException;
 import java.net.InetAddress;
-import java.util.TimerTask;
 
 /**
- * A timer task for when a Rover goes down
+ * A timer task for when a Rover goes down.
+ * <p>
+ * The task lives on a shared HashedWheelTimer. Hearing from the rover only pushes the deadline forward with
+ * {@link #refresh()}; when the task fires before the deadline it simply reschedules itself for the remaining time.
  */
-public class RouterDeathTimerTask extends TimerTask {
+public class RouterDeathTimerTask implements Runnable {
     private InetAddress routerPrivateAddress, routerPublicAddress;
     private Rover rover;
+    private HashedWheelTimer timer;
+    private long timeoutMillis;
+    private volatile long deadline;
+    private volatile boolean cancelled;
+    private volatile HashedWheelTimer.Timeout timeout;
 
     /**
      * Constructs a timer task for rover death
      * @param rover the Rover object running the timer
+     * @param timer the timer on which the task is scheduled
      * @param routerPrivateAddress the ip of the rover which is being checked
+     * @param routerPublicAddress the public ip of the rover which is being checked
+     * @param timeoutMillis the time without hearing from the rover after which it is considered dead
      */
-    RouterDeathTimerTask(Rover rover, InetAddress routerPrivateAddress, InetAddress routerPublicAddress){
+    RouterDeathTimerTask(Rover rover, HashedWheelTimer timer, InetAddress routerPrivateAddress,
+                         InetAddress routerPublicAddress, long timeoutMillis){
         this.routerPrivateAddress = routerPrivateAddress;
         this.routerPublicAddress = routerPublicAddress;
         this.rover = rover;
+        this.timer = timer;
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * Schedules the task on the timer
+     */
+    void start() {
+        refresh();
+        timeout = timer.schedule(this, timeoutMillis);
+    }
+
+    /**
+     * Pushes the deadline forward since we just heard from the rover. Only a timestamp is touched.
+     */
+    void refresh() {
+        deadline = System.currentTimeMillis() + timeoutMillis;
+    }
+
+    /**
+     * Cancels the task so that it never fires
+     */
+    void cancel() {
+        cancelled = true;
+        timeout.cancel();
+    }
+
+    /**
+     * @return the public ip of the rover which is being checked
+     */
+    InetAddress getRouterPublicAddress() {
+        return routerPublicAddress;
     }
 
     /**
@@ -25,8 +68,19 @@ public class RouterDeathTimerTask extends TimerTask {
      */
     @Override
     public void run() {
+        if (cancelled) {
+            return;
+        }
+
+        long remaining = deadline - System.currentTimeMillis();
+        if (remaining > 0) {
+            // The rover was heard from since the task was scheduled
+            timeout = timer.schedule(this, remaining);
+            return;
+        }
+
         try {
-            rover.registerNeighborDeath(routerPrivateAddress, routerPublicAddress);
+            rover.registerNeighborDeath(this, routerPrivateAddress, routerPublicAddress);
         } catch (IOException e) {
             e.printStackTrace();
             System.exit(42);
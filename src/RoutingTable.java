@@ -0,0 +1,422 @@
+import java.net.InetAddress;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A routing table keyed by the 32-bit IPv4 destination.
+ * <p>
+ * Entries are kept in parallel primitive arrays (open addressing with linear probing), so a route costs ~19 bytes
+ * per slot instead of an InetAddress key and a RoutingTableEntry with two more InetAddress objects. Routes are
+ * never removed, an unreachable route has its metric set to infinity as RIP requires.
+ * <p>
+ * The table also keeps track of which destinations changed since the last update (for triggered updates) and a
+ * version which is bumped on every change, and an index from every next hop to the routes using it (a doubly
+ * linked list threaded through the slots), so the routes of a dead neighbor are found without scanning the whole
+ * table. Forwarding doesn't read the table itself but an immutable
+ * {@link ForwardingSnapshot} built from it, which answers longest prefix match lookups on the advertised subnets.
+ * <p>
+ * All methods are synchronized, except snapshot(), which only holds the lock while it copies the routes. Slot numbers
+ * returned by {@link #indexOf(int)} are only valid while holding the table's lock, since the table can be resized by
+ * a put.
+ */
+class RoutingTable {
+    static final byte INFINITY = 16; // RIP's metric for an unreachable destination
+    private static final int EMPTY = 0; // 0.0.0.0 is never a destination, so it marks a free slot
+    private static final float MAX_LOAD_FACTOR = 0.75f;
+    private static final int NONE = -1; // end of a next hop list
+
+    private int[] destinations, nextHops;
+    private byte[] subnetMasks, metrics;
+    private boolean[] changed;
+    private int size, mask;
+
+    // Reverse index: the first slot using every next hop, and the links from slot to slot for the same next hop
+    private Map<Integer, Integer> nextHopHeads = new HashMap<>();
+    private int[] nextSameHop, prevSameHop;
+
+    private int[] changedDestinations;
+    private int changedCount;
+    private long version;
+
+    /**
+     * Callback used to walk over the entries of the table
+     */
+    interface EntryConsumer {
+        void accept(int destination, byte subnetMask, int nextHop, byte metric);
+    }
+
+    /**
+     * Constructs an empty table
+     *
+     * @param expectedSize the number of routes the table should hold without resizing
+     */
+    RoutingTable(int expectedSize) {
+        allocate(Integer.highestOneBit(Math.max((int) (expectedSize / MAX_LOAD_FACTOR), 2) * 2 - 1));
+        changedDestinations = new int[16];
+    }
+
+    /**
+     * Constructs an empty table
+     */
+    RoutingTable() {
+        this(16);
+    }
+
+    private void allocate(int capacity) {
+        destinations = new int[capacity];
+        nextHops = new int[capacity];
+        subnetMasks = new byte[capacity];
+        metrics = new byte[capacity];
+        changed = new boolean[capacity];
+        nextSameHop = new int[capacity];
+        prevSameHop = new int[capacity];
+        mask = capacity - 1;
+    }
+
+    /**
+     * Returns the slot holding the destination
+     *
+     * @param destination the destination to look for
+     * @return the slot of the destination, -1 if the destination is not in the table
+     */
+    synchronized int indexOf(int destination) {
+        for (int slot = hash(destination) & mask; ; slot = (slot + 1) & mask) {
+            if (destinations[slot] == destination) {
+                return slot;
+            }
+            if (destinations[slot] == EMPTY) {
+                return -1;
+            }
+        }
+    }
+
+    synchronized boolean contains(int destination) {
+        return indexOf(destination) >= 0;
+    }
+
+    synchronized int destination(int slot) {
+        return destinations[slot];
+    }
+
+    synchronized byte subnetMask(int slot) {
+        return subnetMasks[slot];
+    }
+
+    synchronized int nextHop(int slot) {
+        return nextHops[slot];
+    }
+
+    synchronized byte metric(int slot) {
+        return metrics[slot];
+    }
+
+    /**
+     * Returns a copy of the entry for the destination
+     *
+     * @param destination the destination to look for
+     * @return a copy of the entry, null if the destination is not in the table
+     */
+    synchronized RoutingTableEntry get(int destination) {
+        int slot = indexOf(destination);
+        if (slot < 0) {
+            return null;
+        }
+        return new RoutingTableEntry(IpUtils.toInetAddress(destination), subnetMasks[slot],
+                IpUtils.toInetAddress(nextHops[slot]), metrics[slot]);
+    }
+
+    /**
+     * Builds an immutable copy of the reachable routes for the forwarding plane. Only copying the routes holds the
+     * table's lock, the prefix trie is built without it, so updates of a big table aren't held up for the whole build.
+     *
+     * @return a snapshot of the reachable routes at the version they were copied at
+     */
+    ForwardingSnapshot snapshot() {
+        long snapshotVersion;
+        int[] routeDestinations, snapshotNextHops;
+        byte[] routeSubnetMasks, snapshotMetrics;
+        synchronized (this) {
+            int reachable = 0;
+            for (int slot = 0; slot < destinations.length; slot++) {
+                if (destinations[slot] != EMPTY && metrics[slot] < INFINITY) {
+                    reachable += 1;
+                }
+            }
+
+            routeDestinations = new int[reachable];
+            routeSubnetMasks = new byte[reachable];
+            snapshotNextHops = new int[reachable];
+            snapshotMetrics = new byte[reachable];
+            int route = 0;
+            for (int slot = 0; slot < destinations.length; slot++) {
+                if (destinations[slot] == EMPTY || metrics[slot] >= INFINITY) {
+                    continue;
+                }
+                routeDestinations[route] = destinations[slot];
+                routeSubnetMasks[route] = subnetMasks[slot];
+                snapshotNextHops[route] = nextHops[slot];
+                snapshotMetrics[route] = metrics[slot];
+                route += 1;
+            }
+            snapshotVersion = version;
+        }
+
+        PrefixTrie snapshotPrefixes = new PrefixTrie();
+        InetAddress[] nextHopAddresses = new InetAddress[snapshotNextHops.length];
+        Map<Integer, InetAddress> addressCache = new HashMap<>(); // there are only as many next hops as neighbors
+        for (int route = 0; route < snapshotNextHops.length; route++) {
+            nextHopAddresses[route] = addressCache.computeIfAbsent(snapshotNextHops[route], IpUtils::toInetAddress);
+            snapshotPrefixes.put(routeDestinations[route], prefixLength(routeSubnetMasks[route]), route + 1);
+        }
+        return new ForwardingSnapshot(snapshotVersion, snapshotPrefixes, snapshotNextHops, snapshotMetrics,
+                nextHopAddresses);
+    }
+
+    /**
+     * Adds or overwrites the entry for the destination
+     *
+     * @param destination the destination IP
+     * @param subnetMask  subnet mask length of the destination
+     * @param nextHop     the next hop for the destination
+     * @param metric      the cost of getting to the destination
+     * @return true if the table changed, false if the same entry was already present
+     */
+    synchronized boolean put(int destination, byte subnetMask, int nextHop, byte metric) {
+        if (destination == EMPTY) {
+            throw new IllegalArgumentException("0.0.0.0 can't be stored in the routing table");
+        }
+
+        int slot = indexOf(destination);
+        if (slot < 0) {
+            if ((size + 1) > destinations.length * MAX_LOAD_FACTOR) {
+                resize(destinations.length * 2);
+            }
+            slot = hash(destination) & mask;
+            while (destinations[slot] != EMPTY) {
+                slot = (slot + 1) & mask;
+            }
+            destinations[slot] = destination;
+            size += 1;
+            nextHops[slot] = nextHop;
+            linkToNextHop(slot);
+        } else if (subnetMasks[slot] == subnetMask && nextHops[slot] == nextHop && metrics[slot] == metric) {
+            return false;
+        } else if (nextHops[slot] != nextHop) {
+            unlinkFromNextHop(slot);
+            nextHops[slot] = nextHop;
+            linkToNextHop(slot);
+        }
+
+        subnetMasks[slot] = subnetMask;
+        metrics[slot] = metric;
+        markChanged(slot);
+        return true;
+    }
+
+    /**
+     * Sets the metric of the entry in the given slot
+     *
+     * @param slot   the slot of the entry
+     * @param metric the new metric
+     * @return true if the table changed
+     */
+    synchronized boolean setMetric(int slot, byte metric) {
+        if (metrics[slot] == metric) {
+            return false;
+        }
+        metrics[slot] = metric;
+        markChanged(slot);
+        return true;
+    }
+
+    /**
+     * Sets the metric of every entry which goes through the given next hop.
+     * Costs O(entries through the next hop), not O(table).
+     *
+     * @param nextHop the next hop whose entries have to be updated
+     * @param metric  the new metric
+     * @return the number of entries which changed
+     */
+    synchronized int setMetricForNextHop(int nextHop, byte metric) {
+        int updated = 0;
+        Integer head = nextHopHeads.get(nextHop);
+        for (int slot = head == null ? NONE : head; slot != NONE; slot = nextSameHop[slot]) {
+            if (setMetric(slot, metric)) {
+                updated += 1;
+            }
+        }
+        return updated;
+    }
+
+    /**
+     * Returns the destinations of every entry which goes through the given next hop
+     *
+     * @param nextHop the next hop to look for
+     * @return the destinations using the next hop
+     */
+    synchronized int[] destinationsVia(int nextHop) {
+        Integer head = nextHopHeads.get(nextHop);
+        int count = 0;
+        for (int slot = head == null ? NONE : head; slot != NONE; slot = nextSameHop[slot]) {
+            count += 1;
+        }
+        int[] res = new int[count];
+        count = 0;
+        for (int slot = head == null ? NONE : head; slot != NONE; slot = nextSameHop[slot]) {
+            res[count++] = destinations[slot];
+        }
+        return res;
+    }
+
+    /**
+     * Passes every entry to the consumer
+     *
+     * @param consumer the consumer of the entries
+     */
+    synchronized void forEach(EntryConsumer consumer) {
+        for (int slot = 0; slot < destinations.length; slot++) {
+            if (destinations[slot] != EMPTY) {
+                consumer.accept(destinations[slot], subnetMasks[slot], nextHops[slot], metrics[slot]);
+            }
+        }
+    }
+
+    /**
+     * Passes every entry which changed since the last call (or since {@link #clearChanged()}) to the consumer
+     *
+     * @param consumer the consumer of the changed entries
+     */
+    synchronized void drainChanged(EntryConsumer consumer) {
+        for (int i = 0; i < changedCount; i++) {
+            int slot = indexOf(changedDestinations[i]);
+            changed[slot] = false;
+            consumer.accept(destinations[slot], subnetMasks[slot], nextHops[slot], metrics[slot]);
+        }
+        changedCount = 0;
+    }
+
+    /**
+     * Forgets which entries changed. Used when the full table is about to be sent.
+     */
+    synchronized void clearChanged() {
+        for (int i = 0; i < changedCount; i++) {
+            changed[indexOf(changedDestinations[i])] = false;
+        }
+        changedCount = 0;
+    }
+
+    /**
+     * Returns the version of the table. It increases every time an entry changes, so two equal versions mean the
+     * table did not move in between.
+     *
+     * @return the version of the table
+     */
+    synchronized long version() {
+        return version;
+    }
+
+    synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Returns the subnet mask as a valid prefix length, a mask outside 0 - 32 is read as a host route
+     */
+    private static int prefixLength(byte subnetMask) {
+        return subnetMask < 0 || subnetMask > 32 ? 32 : subnetMask;
+    }
+
+    private void markChanged(int slot) {
+        version += 1;
+        if (changed[slot]) {
+            return;
+        }
+        changed[slot] = true;
+        if (changedCount == changedDestinations.length) {
+            changedDestinations = Arrays.copyOf(changedDestinations, changedCount * 2);
+        }
+        changedDestinations[changedCount++] = destinations[slot];
+    }
+
+    /**
+     * Adds the slot to the front of the list of its next hop
+     */
+    private void linkToNextHop(int slot) {
+        Integer head = nextHopHeads.put(nextHops[slot], slot);
+        prevSameHop[slot] = NONE;
+        nextSameHop[slot] = head == null ? NONE : head;
+        if (head != null) {
+            prevSameHop[head] = slot;
+        }
+    }
+
+    /**
+     * Removes the slot from the list of its next hop
+     */
+    private void unlinkFromNextHop(int slot) {
+        int prev = prevSameHop[slot], next = nextSameHop[slot];
+        if (next != NONE) {
+            prevSameHop[next] = prev;
+        }
+        if (prev != NONE) {
+            nextSameHop[prev] = next;
+        } else if (next != NONE) {
+            nextHopHeads.put(nextHops[slot], next);
+        } else {
+            nextHopHeads.remove(nextHops[slot]);
+        }
+    }
+
+    private void resize(int newCapacity) {
+        int[] oldDestinations = destinations, oldNextHops = nextHops;
+        byte[] oldSubnetMasks = subnetMasks, oldMetrics = metrics;
+        boolean[] oldChanged = changed;
+        allocate(newCapacity);
+
+        for (int oldSlot = 0; oldSlot < oldDestinations.length; oldSlot++) {
+            if (oldDestinations[oldSlot] == EMPTY) {
+                continue;
+            }
+            int slot = hash(oldDestinations[oldSlot]) & mask;
+            while (destinations[slot] != EMPTY) {
+                slot = (slot + 1) & mask;
+            }
+            destinations[slot] = oldDestinations[oldSlot];
+            nextHops[slot] = oldNextHops[oldSlot];
+            subnetMasks[slot] = oldSubnetMasks[oldSlot];
+            metrics[slot] = oldMetrics[oldSlot];
+            changed[slot] = oldChanged[oldSlot];
+        }
+
+        // Every slot moved, so the next hop lists are built again
+        nextHopHeads.clear();
+        for (int slot = 0; slot < destinations.length; slot++) {
+            if (destinations[slot] != EMPTY) {
+                linkToNextHop(slot);
+            }
+        }
+    }
+
+    /**
+     * Spreads the bits of the address since neighboring addresses only differ in the low bits
+     */
+    private static int hash(int destination) {
+        int h = destination * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * Returns a neat representation of the table, one entry per line
+     *
+     * @return a neat representation of the table
+     */
+    @Override
+    public synchronized String toString() {
+        StringBuilder res = new StringBuilder();
+        forEach((destination, subnetMask, nextHop, metric) -> res.append(IpUtils.toString(destination)).append("/")
+                .append(subnetMask).append(" \t").append(IpUtils.toString(nextHop)).append(" \t")
+                .append(metric).append(" \t \n"));
+        return res.toString();
+    }
+}
@@ -1,7 +1,9 @@
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Logger;
 
 /**
@@ -13,37 +15,70 @@ public class Rover {
     private byte id;
     private MulticastSocket socket;
     private InetAddress group, destAddress;
-    private Map<InetAddress, RoutingTableEntry> routingTable;
-    private Map<InetAddress, List<RoutingTableEntry>> neighborRoutingTableEntriesCache;
-    private Map<InetAddress, Timer> neighborTimers;
+    private RoutingTable routingTable;
+    private Map<InetAddress, NeighborRouteCache> neighborRoutingTableEntriesCache;
+    private Map<InetAddress, RouterDeathTimerTask> neighborTimers;
+    // one timer thread for the death timers of all the neighbors and for deferred snapshot publishing
+    private HashedWheelTimer wheelTimer;
+    // what the forwarding plane reads, replaced as a whole whenever the routing table changes
+    private volatile ForwardingSnapshot forwardingSnapshot;
+    private volatile long lastSnapshotPublishTime;
+    private final AtomicBoolean snapshotPublishPending = new AtomicBoolean();
     private InetAddress myPublicAddress, myPrivateAddress;
-    private int multicastPort;
-    private String fileToSend;
+    private int myPublicIp, myPrivateIp; // the same addresses packed into ints for allocation free comparisons
+    private int multicastPort, windowSize;
+    private String fileToSend, congestionControl, dropPolicy;
     private DatagramSocket udpSocket, udpAckSocket;
+    private ForwardingEngine forwardingEngine;
+    private final Map<Integer, Long> reportedOutputQueueDrops = new HashMap<>(); // only used by the timer thread
 
 
     private final static Logger LOGGER = Logger.getLogger("ROVER");
     private final static int
-            RIP_LISTEN_WINDOW = 1024,
+            RIP_LISTEN_WINDOW = 1024, // Larger than RIPPacketUtil.MAX_PACKET_SIZE, big tables come in several packets
             ROUTE_UPDATE_TIME = 5,
             ROUTE_DELAY_TIME = 1,
             ROVER_OFFLINE_TIME_LIMIT = 10, // Time to wait before considering a rover to be dead
             ROVER_OFFLINE_TIMER_START_DELAY = 5,
+            NEIGHBOR_DEATH_TIME = 7, // Time without an update after which a neighbor is considered dead
+            NEIGHBOR_ROUTE_EXPIRY_TIME = NEIGHBOR_DEATH_TIME, // Longer than ROUTE_UPDATE_TIME, see NeighborRouteCache
+            TIMER_TICK = 100, // in milliseconds
+            TIMER_WHEEL_SIZE = 512,
+            SNAPSHOT_PUBLISH_INTERVAL = 100, // Minimum time between two forwarding snapshots, in milliseconds
+            SESSION_SWEEP_INTERVAL = 1000, // How often finished and abandoned transfers are dropped, in milliseconds
+            SESSION_LINGER_TIME = 10, // Time a finished transfer is kept to answer late retransmissions
+            SESSION_IDLE_TIMEOUT = 60, // Time without a packet after which a transfer is given up
+            JOURNAL_CHECKPOINT_INTERVAL = 1000, // How often transfers being received are journaled, in milliseconds
+            COMPLETED_TRANSFER_MEMORY = 1024, // Finished transfers whose final ACK is still sent after they expired
             FILE_TRANSFER_MAX_READ_WINDOW = 6000,
+            FORWARDING_QUEUE_SIZE = 128, // Packets which may wait for each forwarding thread before they are dropped
+            OUTPUT_QUEUE_SIZE = 256, // Packets which may wait for each next hop before they are dropped
+            OUTPUT_QUEUE_REPORT_INTERVAL = 10_000, // How often output queues which dropped packets are logged, in ms
             DOES_NOT_MATTER = 0,
             WAIT_TIME_BEFORE_TRANSFER = 3, // Time to wait before transferring the file
-            INFINITY = 16,
+            INFINITY = RoutingTable.INFINITY,
             UDP_PORT = 6161,
             UDP_ACK_PORT = 5454,
-            ACK_WAIT_TIMEOUT = 1000,
+            ACK_WAIT_TIMEOUT = 1000, // Retransmission timeout until the round trip time to the destination is measured
             WAIT_TIME_TILL_ROUTE_APPEARS = 5, // Time to wait before checking if the route to the destination rover is up
-            MAX_HEADER_SIZE = 10, // The maximum data a header can take (never listen for a packet smaller than this)
-            MAX_PAYLOAD_SIZE = 5000; // The chunks in which the data will be sent
+            MAX_HEADER_SIZE = 10; // The maximum data a header can take (never listen for a packet smaller than this)
     private final static byte RIP_REQUEST = 1,
             RIP_UPDATE = 2,
             SUBNET_MASK = 24;
     private final static String OUTPUT_FILENAME = "OUTPUT_FILE";
     private Map<InetAddress, InetAddress> privateToPublicAddresCache;
+    // Transfers being received, keyed by the source's private address and the transfer id
+    private final ReceiveSessionTable receiveSessions = new ReceiveSessionTable();
+    // The final ack number of the most recently finished transfers, keyed like the sessions. Late retransmissions
+    // of a transfer whose session expired are answered from here, instead of starting it over
+    private final Map<Long, Integer> completedTransfers = Collections.synchronizedMap(
+            new LinkedHashMap<Long, Integer>() {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Long, Integer> eldest) {
+                    return size() > COMPLETED_TRANSFER_MEMORY;
+                }
+            });
+    private final RIPEntryCursor ripEntryCursor = new RIPEntryCursor(); // only used by the multicast listener thread
 
 
     /**
@@ -51,21 +86,30 @@ public class Rover {
      *
      * @param id
      */
-    private Rover(byte id, int multicastPort, InetAddress multicastIP, String fileToSend, InetAddress destAddress) throws IOException {
+    private Rover(byte id, int multicastPort, InetAddress multicastIP, String fileToSend, InetAddress destAddress,
+                  int windowSize, String congestionControl, int forwardingThreads, String dropPolicy)
+            throws IOException {
         this.id = id;
+        this.windowSize = windowSize;
+        this.congestionControl = congestionControl;
+        this.dropPolicy = dropPolicy;
         this.multicastPort = multicastPort;
         this.fileToSend = fileToSend;
         this.destAddress = destAddress;
         udpSocket = new DatagramSocket(UDP_PORT);
         udpAckSocket = new DatagramSocket(UDP_ACK_PORT);
 
-        routingTable = new ConcurrentHashMap<>();
-        neighborRoutingTableEntriesCache = new HashMap<>();
-        neighborTimers = new HashMap<>();
-        privateToPublicAddresCache = new HashMap<>();
+        routingTable = new RoutingTable();
+        forwardingSnapshot = routingTable.snapshot();
+        neighborRoutingTableEntriesCache = new ConcurrentHashMap<>();
+        neighborTimers = new ConcurrentHashMap<>();
+        wheelTimer = new HashedWheelTimer("Rover Timer", TIMER_TICK, TIMER_WHEEL_SIZE);
+        privateToPublicAddresCache = new ConcurrentHashMap<>();
 
         myPublicAddress = getMyInetAddress();
         myPrivateAddress = idToPrivateIp(id);
+        myPublicIp = IpUtils.toInt(myPublicAddress);
+        myPrivateIp = IpUtils.toInt(myPrivateAddress);
 
         LOGGER.info("Rover: " + id + " has a public IP address of " + myPublicAddress + " and a private address of " +
                 myPrivateAddress + ((fileToSend == null) ? "" : " and will be sending the file " + fileToSend + " to " + this.destAddress));
@@ -102,7 +146,21 @@ public class Rover {
             new Thread(this::sendFile).start();
         }
 
-        new Thread(this::listenForFileTransfer).start();
+        forwardingEngine = new ForwardingEngine("Forwarding", udpSocket, forwardingThreads, FORWARDING_QUEUE_SIZE,
+                FILE_TRANSFER_MAX_READ_WINDOW, OUTPUT_QUEUE_SIZE, dropPolicy, this::handleFileTransferPacket);
+        wheelTimer.schedule(this::expireReceiveSessions, SESSION_SWEEP_INTERVAL);
+        wheelTimer.schedule(this::reportOutputQueues, OUTPUT_QUEUE_REPORT_INTERVAL);
+        wheelTimer.schedule(this::expireNeighborRoutes, NEIGHBOR_ROUTE_EXPIRY_TIME * 1000);
+
+        // Journal the transfers being received on a thread of its own, so no worker ever waits for the disk
+        TimerTask checkpointTask = new TimerTask() {
+            @Override
+            public void run() {
+                checkpointReceiveSessions();
+            }
+        };
+        Timer checkpointTimer = new Timer("Journal Checkpoint Timer");
+        checkpointTimer.scheduleAtFixedRate(checkpointTask, JOURNAL_CHECKPOINT_INTERVAL, JOURNAL_CHECKPOINT_INTERVAL);
 
     }
 
@@ -113,72 +171,16 @@ public class Rover {
         try {
             // wait for paths to normalize before sending the packet
             Thread.sleep(WAIT_TIME_BEFORE_TRANSFER * 1000);
-            while (!routingTable.containsKey(destAddress)) {
+            while (forwardingSnapshot.lookup(IpUtils.toInt(destAddress)) == ForwardingSnapshot.NO_ROUTE) {
                 LOGGER.info("No entry for " + destAddress + ". Waiting for " + WAIT_TIME_TILL_ROUTE_APPEARS + " seconds.");
                 Thread.sleep(WAIT_TIME_TILL_ROUTE_APPEARS * 1000);
             }
 
-            // Initialize needed variables
-            long totalSize = new File(fileToSend).length();
-            BufferedInputStream bufferedInputStream = new BufferedInputStream(new FileInputStream(fileToSend));
-            byte[] buffer = new byte[MAX_PAYLOAD_SIZE];
-            byte[] recvBuffer = new byte[MAX_PAYLOAD_SIZE];
-            DatagramPacket packet;
-            int bytesRead = 0;
-            byte[] packetToSend, actualPacket;
-            int seqNumber = 1;
-            boolean synSent = false, repeat = false;
-
-            while (repeat || (bytesRead = bufferedInputStream.read(buffer, 0, buffer.length)) != -1) {
-
-                if (repeat) {
-                    LOGGER.info("This is a repeat message because ACK was not received");
-                }
-
-                // If the size of the buffer to be sent is less than MAX_PAYLOAD_SIZE, we will reduce it to have
-                // only the things we need
-                if (bytesRead < MAX_PAYLOAD_SIZE) {
-                    buffer = Arrays.copyOf(buffer, bytesRead);
-                    LOGGER.info("Resized the buffer to " + buffer.length);
-                }
-
-                if (!synSent) {
-                    packetToSend = JPacketUtil.jPacket2Arr(destAddress, this.myPrivateAddress,
-                            DOES_NOT_MATTER, DOES_NOT_MATTER, BitUtils.setBitInByte((byte) 0, JPacketUtil.SYN_INDEX),
-                            buffer, (int) totalSize);
-                    synSent = true;
-                } else {
-                    packetToSend = JPacketUtil.jPacket2Arr(destAddress, this.myPrivateAddress,
-                            repeat ? seqNumber - 1 : seqNumber++, DOES_NOT_MATTER, BitUtils.setBitInByte((byte) 0,
-                                    JPacketUtil.NORMAL_INDEX), buffer, DOES_NOT_MATTER);
-                }
-
-
-                System.out.println("About to send packet ");
-                System.out.println(JPacketUtil.arr2JPacket(packetToSend));
-                System.out.println("-----------------------------\n");
-
-                packet = new DatagramPacket(packetToSend, packetToSend.length, routingTable.get(destAddress).nextHop, UDP_PORT);
-                udpSocket.send(packet);
-
-                LOGGER.info("Sent the packet, Waiting for ACK\n");
-
-                JPacket recvdJPacket;
-                udpAckSocket.setSoTimeout(ACK_WAIT_TIMEOUT);
-                do {
-                    packet = new DatagramPacket(recvBuffer, recvBuffer.length);
-                    try {
-                        udpAckSocket.receive(packet);
-                    } catch (SocketTimeoutException e) {
-                        LOGGER.info("ACK wait timer timed out");
-                        repeat = true;
-                        break;
-                    }
-                    repeat = false;
-                    actualPacket = Arrays.copyOfRange(recvBuffer, 0, packet.getLength());
-                    recvdJPacket = JPacketUtil.arr2JPacket(actualPacket);
-                } while (!JPacketUtil.isBitSet(recvdJPacket.flags, JPacketUtil.ACK_INDEX) && recvdJPacket.ackNumber != seqNumber);
-                LOGGER.info("Got an ack, moving ahead");
+            JRTPSender sender = new JRTPSender(UDP_PORT, udpAckSocket, myPrivateAddress, destAddress,
+                    fileToSend, windowSize, CongestionController.forName(congestionControl, windowSize),
+                    ACK_WAIT_TIMEOUT, this::nextHopAddress);
+            if (!sender.send()) {
+                LOGGER.info("Could not send " + fileToSend + " to " + destAddress);
             }
         } catch (InterruptedException | IOException e) {
             e.printStackTrace();
@@ -187,149 +189,332 @@ public class Rover {
     }
 
     /**
-     * Listens for file transfer and processes if it's its own or forwards
+     * Returns the next hop towards a private address
+     *
+     * @param address the private address of a rover
+     * @return the public address of the next hop, null if there is no route
      */
-    private void listenForFileTransfer() {
-        DatagramPacket packet;
-        byte[] buffer = new byte[FILE_TRANSFER_MAX_READ_WINDOW];
-        byte[] actualPacket;
-        int totalFileSize = 0, prevSequenceNumber = 0;
-
-        try (FileOutputStream fileOutputStream = new FileOutputStream(OUTPUT_FILENAME)) {
-            while (true) {
-                packet = new DatagramPacket(buffer, buffer.length);
-                udpSocket.receive(packet);
-
-                actualPacket = Arrays.copyOfRange(buffer, 0, packet.getLength());
-                JPacket jPacket = JPacketUtil.arr2JPacket(actualPacket);
-
-
-                LOGGER.info("Got this packet\n");
-                System.out.println(jPacket);
-                System.out.println("\n~~~~~~~~~~~~~~");
-
-                // No need to check for ACK since it'll be sent to the ACK socket, not the data transfer socket
-                if (!jPacket.destAddress.equals(myPrivateAddress)) {
-                    udpSocket.send(
-                            new DatagramPacket(actualPacket, actualPacket.length,
-                                    routingTable.get(jPacket.destAddress).nextHop,
-                                    (routingTable.get(jPacket.destAddress).metric == 1 &&
-                                            JPacketUtil.isBitSet(jPacket.flags, JPacketUtil.ACK_INDEX)) ? UDP_ACK_PORT : UDP_PORT));
-
-                    System.out.println("Not meant for me. Sent it to " + routingTable.get(jPacket.destAddress).nextHop);
-                    continue;
-                }
-
-                // drop packet if:
-                // 1. It's a SYN and we're not expecting a SYN
-                // 2. It's a normal packet and we're not expecting that sequence number
-                if ((JPacketUtil.isBitSet(jPacket.flags, JPacketUtil.NORMAL_INDEX) && jPacket.seqNumber != prevSequenceNumber) ||
-                        (JPacketUtil.isBitSet(jPacket.flags, JPacketUtil.SYN_INDEX) && prevSequenceNumber != 0)) {
-                    continue;
-                }
+    private InetAddress nextHopAddress(InetAddress address) {
+        ForwardingSnapshot snapshot = forwardingSnapshot;
+        int route = snapshot.lookup(IpUtils.toInt(address));
+        return route == ForwardingSnapshot.NO_ROUTE ? null : snapshot.nextHopAddress(route);
+    }
 
-                if (JPacketUtil.isBitSet(jPacket.flags, JPacketUtil.SYN_INDEX)) {
-                    assert jPacket.payload != null;
-                    totalFileSize = jPacket.totalSize - jPacket.payload.length;
-                    sendAckForPacket(jPacket);
+    /**
+     * Handles a JRTP packet on a worker of the forwarding engine. Processes it if it's addressed to us, forwards it
+     * otherwise. The worker's packet view is used, so neither path allocates anything.
+     * <p>
+     * Packets in transit take a fast path: only their flags and destination are read, and the received bytes are
+     * sent on as they are. Packets addressed to us are the only ones which are decoded.
+     *
+     * @param worker the worker handling the packet
+     * @param packet the received packet
+     * @param length the length of the packet
+     * @return true if the packet was queued to be forwarded
+     */
+    private boolean handleFileTransferPacket(ForwardingEngine.Worker worker, ForwardingEngine.Packet packet,
+                                             int length) {
+        // No need to check for ACK since it'll be sent to the ACK socket, not the data transfer socket
+        int destIp = JPacketView.peekDestIp(packet.buffer, 0);
+        if (!isLocalAddress(destIp)) {
+            return forward(worker, packet, destIp);
+        }
 
-                } else if (JPacketUtil.isBitSet(jPacket.flags, JPacketUtil.NORMAL_INDEX)) {
-                    assert jPacket.payload != null;
-                    totalFileSize -= jPacket.payload.length;
-                    sendAckForPacket(jPacket);
-                }
+        // Malformed packets and stray ACKs are dropped, only the data of a transfer is delivered
+        if (worker.view.wrap(packet.buffer, 0, length) && !worker.view.isAck()) {
+            receiveLocalPacket(worker, worker.view);
+        }
+        return false;
+    }
 
-                prevSequenceNumber += 1;
-                fileOutputStream.write(jPacket.payload);
-                System.out.println("Remaining file to be received is " + totalFileSize);
+    /**
+     * Queues a packet in transit for the next hop towards its destination without decoding it
+     *
+     * @param worker the worker handling the packet, whose route cache is used
+     * @param packet the received packet, its datagram still holds the packet's length
+     * @param destIp the destination of the packet packed into an int
+     * @return true if the packet was queued, false if it was dropped
+     */
+    private boolean forward(ForwardingEngine.Worker worker, ForwardingEngine.Packet packet, int destIp) {
+        // Read the snapshot once so that the next hop and metric come from the same version
+        ForwardingSnapshot snapshot = forwardingSnapshot;
+        int route = worker.routeCache.lookup(snapshot, destIp);
+        if (route == ForwardingSnapshot.NO_ROUTE) {
+            LOGGER.info("No route to " + IpUtils.toString(destIp) + ". Dropping the packet");
+            return false;
+        }
+        packet.datagram.setAddress(snapshot.nextHopAddress(route));
+        packet.datagram.setPort(snapshot.metric(route) == 1 &&
+                JPacketUtil.isBitSet(packet.data[0], JPacketUtil.ACK_INDEX) ? UDP_ACK_PORT : UDP_PORT);
+        return forwardingEngine.send(packet, snapshot.nextHop(route));
+    }
 
-                if (totalFileSize == 0 && !JPacketUtil.isBitSet(jPacket.flags, JPacketUtil.ACK_INDEX)) {
-                    System.out.println("FILE FULLY RECEIVED. Saved as 'OUTPUT_FILE' ============================");
-                    fileOutputStream.close();
-                    System.exit(42);
+    /**
+     * Hands a packet addressed to us to the session of its transfer and acknowledges it. A failing transfer is
+     * dropped without affecting the others. A packet of a transfer which finished after its session expired only
+     * gets the final ACK again.
+     *
+     * @param worker  the worker handling the packet
+     * @param jPacket a view of a packet addressed to us
+     */
+    private void receiveLocalPacket(ForwardingEngine.Worker worker, JPacketView jPacket) {
+        int sourceIp = jPacket.sourceIp(), transferId = jPacket.transferId();
+        long key = ReceiveSessionTable.key(sourceIp, transferId);
+        JRTPReceiver receiver = null;
+        try {
+            receiver = getReceiveSession(key, jPacket);
+            if (receiver == null) {
+                Integer finalAckNumber = completedTransfers.get(key);
+                if (finalAckNumber != null) {
+                    sendAckForPacket(worker, sourceIp, transferId, finalAckNumber, null);
                 }
+                return;
+            }
+            boolean wasComplete = receiver.isComplete();
+            int ackNumber = receiver.onPacket(jPacket);
+            if (ackNumber != JRTPReceiver.NO_ACK) {
+                sendAckForPacket(worker, sourceIp, transferId, ackNumber, receiver);
+            }
 
+            if (!wasComplete && receiver.isComplete()) {
+                completedTransfers.put(key, ackNumber);
+                LOGGER.info("FILE FULLY RECEIVED from " + IpUtils.toString(sourceIp) + ". Saved as '" +
+                        outputFilename(sourceIp, transferId) + "'");
             }
         } catch (IOException e) {
-            e.printStackTrace();
-            System.exit(42);
+            LOGGER.info("Dropping transfer " + Integer.toHexString(transferId) + " from " +
+                    IpUtils.toString(sourceIp) + ": " + e);
+            if (receiver != null) {
+                receiveSessions.remove(receiver);
+                try {
+                    receiver.close();
+                } catch (IOException closeException) {
+                    closeException.printStackTrace();
+                }
+            }
         }
     }
 
     /**
-     * Sends an ACK for the given jPacket
-     * @param jPacket the packet which needs to be acknowledged
-     * @throws IOException
+     * Returns the session of the transfer a packet belongs to, starting a new one for a new transfer. Every packet
+     * of a transfer is handled by the same worker, so two workers never race to start the same session.
+     * <p>
+     * Only a SYN starts a new transfer, any other packet can only resume one from its journal. Neither starts a
+     * transfer which already finished, so a late retransmission never touches a file which was received in full.
+     *
+     * @param key     the key of the packet's transfer
+     * @param jPacket a view of the packet
+     * @return the receiver of the transfer, null if the packet doesn't belong to a transfer in progress
+     * @throws IOException if the output file of a new transfer can't be opened
      */
-    private void sendAckForPacket(JPacket jPacket) throws IOException {
-        byte[] ackPacket = JPacketUtil.jPacket2Arr(jPacket.sourceAddress, myPrivateAddress, DOES_NOT_MATTER,
-                jPacket.seqNumber + 1,
-                BitUtils.setBitInByte((byte) 0, JPacketUtil.ACK_INDEX),
-                new byte[0], DOES_NOT_MATTER);
-
-        System.out.println("Sending ACK to " + routingTable.get(jPacket.sourceAddress).nextHop);
-        udpSocket.send(new DatagramPacket(ackPacket, ackPacket.length,
-                routingTable.get(jPacket.sourceAddress).nextHop,
-                routingTable.get(jPacket.sourceAddress).metric == 1 ? UDP_ACK_PORT : UDP_PORT));
+    private JRTPReceiver getReceiveSession(long key, JPacketView jPacket) throws IOException {
+        JRTPReceiver receiver = receiveSessions.get(key);
+        if (receiver == null) {
+            int sourceIp = jPacket.sourceIp(), transferId = jPacket.transferId();
+            String outputFilename = outputFilename(sourceIp, transferId);
+            if (completedTransfers.containsKey(key) ||
+                    !jPacket.isSyn() && !JRTPReceiver.canResume(outputFilename)) {
+                return null;
+            }
+            receiver = new JRTPReceiver(outputFilename);
+            receiveSessions.put(key, receiver);
+            LOGGER.info((receiver.isResumed() ? "Resuming transfer " : "New transfer ") +
+                    Integer.toHexString(transferId) + " from " + IpUtils.toString(sourceIp));
+        }
+        return receiver;
+    }
+
+    /**
+     * @param sourceIp   the source of a transfer packed into an int
+     * @param transferId the id of the transfer
+     * @return the file the transfer is saved to, unique per source and transfer
+     */
+    private static String outputFilename(int sourceIp, int transferId) {
+        return OUTPUT_FILENAME + "_" + IpUtils.toString(sourceIp) + "_" + Integer.toHexString(transferId);
+    }
+
+    /**
+     * Drops the sessions of transfers which finished a while ago or whose sender went quiet, then schedules itself
+     * again. A finished session is kept for a bit to answer retransmissions of segments whose ACK got lost.
+     */
+    private void expireReceiveSessions() {
+        long now = System.currentTimeMillis();
+        List<JRTPReceiver> expired = new ArrayList<>();
+        receiveSessions.removeIf(receiver -> {
+            long idle = now - receiver.getLastActivity();
+            if ((receiver.isComplete() && idle > SESSION_LINGER_TIME * 1000) || idle > SESSION_IDLE_TIMEOUT * 1000) {
+                expired.add(receiver);
+                return true;
+            }
+            return false;
+        });
+        // Closing may checkpoint to disk, so it's done without holding the table
+        for (JRTPReceiver receiver : expired) {
+            try {
+                receiver.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            if (!receiver.isComplete()) {
+                LOGGER.info("Gave up on a transfer with " + receiver.getRemainingSize() + " bytes missing");
+            }
+        }
+        wheelTimer.schedule(this::expireReceiveSessions, SESSION_SWEEP_INTERVAL);
+    }
+
+    /**
+     * Checkpoints every transfer being received, so it can be resumed after a restart. Finished transfers get their
+     * file closed and their journal deleted.
+     */
+    private void checkpointReceiveSessions() {
+        for (JRTPReceiver receiver : receiveSessions.sessions()) {
+            try {
+                receiver.checkpoint();
+            } catch (IOException e) {
+                LOGGER.info("Could not checkpoint a transfer with " + receiver.getRemainingSize() +
+                        " bytes missing: " + e);
+            }
+        }
+    }
+
+    /**
+     * Sends an ACK for a packet of a transfer. The ACK is encoded into a free packet of the forwarding engine and
+     * queued for the next hop like a forwarded packet. If there is no free packet, the ACK is dropped like any other
+     * packet and the sender's retransmission timer takes care of it.
+     *
+     * @param worker     the worker handling the packet, whose route cache and SACK bitmap are used
+     * @param destIp     the source of the packet which needs to be acknowledged, packed into an int
+     * @param transferId the transfer of the packet
+     * @param ackNumber  the next segment we expect from the sender
+     * @param receiver   the session of the transfer, which fills in the SACK bitmap, null if it finished and expired
+     */
+    private void sendAckForPacket(ForwardingEngine.Worker worker, int destIp, int transferId, int ackNumber,
+                                  JRTPReceiver receiver) {
+        ForwardingSnapshot snapshot = forwardingSnapshot;
+        int route = worker.routeCache.lookup(snapshot, destIp);
+        if (route == ForwardingSnapshot.NO_ROUTE) {
+            LOGGER.info("No route to " + IpUtils.toString(destIp) + ". Can't send the ACK");
+            return;
+        }
+
+        ForwardingEngine.Packet ack = forwardingEngine.poll();
+        if (ack == null) {
+            return;
+        }
+        ByteBuffer ackBuffer = ack.buffer;
+        ackBuffer.clear();
+        JPacketUtil.putAck(ackBuffer, destIp, myPrivateIp, transferId, ackNumber);
+        int sackLength = receiver == null ? 0 : receiver.fillSackBitmap(worker.sackBitmap);
+        if (sackLength > 0) {
+            JPacketUtil.putSackBitmap(ackBuffer, 0, worker.sackBitmap, sackLength);
+        }
+
+        ack.datagram.setLength(ackBuffer.position());
+        ack.datagram.setAddress(snapshot.nextHopAddress(route));
+        ack.datagram.setPort(snapshot.metric(route) == 1 ? UDP_ACK_PORT : UDP_PORT);
+        if (!forwardingEngine.send(ack, snapshot.nextHop(route))) {
+            forwardingEngine.release(ack);
+        }
+    }
+
+    /**
+     * Logs the counters of the output queues which dropped packets since the last report, then schedules itself
+     * again
+     */
+    private void reportOutputQueues() {
+        for (OutputQueue outputQueue : forwardingEngine.getOutputQueues()) {
+            long drops = outputQueue.getTailDrops() + outputQueue.getEarlyDrops() + outputQueue.getControlDrops();
+            Long reportedDrops = reportedOutputQueueDrops.put(outputQueue.nextHopIp, drops);
+            if (reportedDrops == null || drops > reportedDrops) {
+                LOGGER.info(outputQueue.toString());
+            }
+        }
+        wheelTimer.schedule(this::reportOutputQueues, OUTPUT_QUEUE_REPORT_INTERVAL);
+        wheelTimer.schedule(this::expireNeighborRoutes, NEIGHBOR_ROUTE_EXPIRY_TIME * 1000);
     }
 
     /**
      * Updates entries as per the Distance Vector Algorithm when new entries are received
      *
-     * @param newEntries The entries received
+     * @param sourcePublicAddress the address the packet was received from
+     * @param packet              the received RIP packet
+     * @param packetLength        the length of the received RIP packet
      */
-    private void updateEntries(InetAddress sourcePublicAddress, byte sourceRoverId,
-                               byte ripCommand, List<RoutingTableEntry> newEntries) throws IOException {
+    private void updateEntries(InetAddress sourcePublicAddress, byte[] packet, int packetLength) throws IOException {
+        ripEntryCursor.reset(packet, packetLength);
+        byte sourceRoverId = ripEntryCursor.roverId(), ripCommand = ripEntryCursor.command();
 
         // Drop your own table entries
         if (sourceRoverId == id) {
             return;
         }
 
-        String oldRoutingTableString = routingTable.toString();
+        long oldRoutingTableVersion = routingTable.version();
 
         InetAddress sourcePrivateAddress = idToPrivateIp(sourceRoverId);
 
-        // Cache the entries of neighbors to recalculate the path when a router dies
-        neighborRoutingTableEntriesCache.put(sourcePrivateAddress, newEntries);
+        // Cache the entries of neighbors to recalculate the path when a router dies.
+        // A neighbor's table can be split across several packets, so entries are merged into what we already have
+        // until they expire
+        NeighborRouteCache neighborEntries =
+                neighborRoutingTableEntriesCache.computeIfAbsent(sourcePrivateAddress, k -> new NeighborRouteCache());
         privateToPublicAddresCache.put(sourcePrivateAddress, sourcePublicAddress);
 
 
         // Since we got a message from this router, it must be at a distance of 1
-        routingTable.put(sourcePrivateAddress, new RoutingTableEntry(sourcePrivateAddress, (byte) 24, sourcePublicAddress, (byte) 1));
+        int sourcePublicIp = IpUtils.toInt(sourcePublicAddress);
+        routingTable.put(IpUtils.toInt(sourcePrivateAddress), SUBNET_MASK, sourcePublicIp, (byte) 1);
 
 
-        // restart the timer task since we have received the heart beat
-        if (neighborTimers.containsKey(sourcePrivateAddress)) {
-            neighborTimers.get(sourcePrivateAddress).cancel();
+        // push the death timer forward since we have received the heart beat
+        RouterDeathTimerTask deathTimerTask = neighborTimers.get(sourcePrivateAddress);
+        if (deathTimerTask != null && deathTimerTask.getRouterPublicAddress().equals(sourcePublicAddress)) {
+            deathTimerTask.refresh();
+        } else {
+            if (deathTimerTask != null) {
+                deathTimerTask.cancel();
+            }
+            deathTimerTask = new RouterDeathTimerTask(this, wheelTimer, sourcePrivateAddress, sourcePublicAddress,
+                    NEIGHBOR_DEATH_TIME * 1000);
+            neighborTimers.put(sourcePrivateAddress, deathTimerTask);
+            deathTimerTask.start();
         }
 
-        neighborTimers.put(sourcePrivateAddress, new Timer(sourcePrivateAddress + " Death Timer"));
-        neighborTimers.get(sourcePrivateAddress).schedule(
-                new RouterDeathTimerTask(
-                        this, sourcePrivateAddress, sourcePublicAddress),
-                7 * 1000
-        );
+        while (ripEntryCursor.next()) {
+            // Cache the entry as the neighbor sent it
+            neighborEntries.put(ripEntryCursor.ipAddress(), ripEntryCursor.subnetMask(), ripEntryCursor.nextHop(),
+                    ripEntryCursor.metric());
 
-        for (RoutingTableEntry entry : newEntries) {
             // skip your own multicast
-            if (myPrivateAddress.equals(entry.ipAddress)) {
+            if (ripEntryCursor.ipAddress() == myPrivateIp) {
                 continue;
             }
 
-            updateTableFromEntry(sourcePublicAddress, entry);
+            updateTableFromEntry(sourcePublicIp, ripEntryCursor.ipAddress(), ripEntryCursor.subnetMask(),
+                    ripEntryCursor.nextHop(), ripEntryCursor.metric());
         }
 
-        boolean updateHappened = !oldRoutingTableString.equals(routingTable.toString());
+        boolean updateHappened = routingTable.version() != oldRoutingTableVersion;
         if (updateHappened) {
+            publishForwardingSnapshot();
             LOGGER.info(myPrivateAddress + "'s table was updated from received entries. New table is ->\n" + getStringRoutingTable() + "\n");
-            sendRIPUpdate();
+            sendTriggeredUpdate();
         } else if (ripCommand == RIP_REQUEST) { // If a request was made, we have to send the update
             LOGGER.info(myPrivateAddress + " got a RIP request. Going to send a RIP update -> \n" + getStringRoutingTable() + " \n");
             sendRIPUpdate();
         }
     }
 
+    /**
+     * Returns true if the address is inside this rover's own subnet, in which case packets for it are delivered here
+     *
+     * @param address the address to check packed into an int
+     * @return true if the address is inside this rover's own subnet
+     */
+    private boolean isLocalAddress(int address) {
+        return ((address ^ myPrivateIp) & PrefixTrie.mask(SUBNET_MASK)) == 0;
+    }
+
     /**
      * Returns a private IP based on the IP address
      *
@@ -341,15 +526,82 @@ public class Rover {
     }
 
     /**
-     * Send update packets out
+     * Send update packets out with the full table. Large tables are split across several packets.
      */
     private void sendRIPUpdate() throws IOException {
 //        LOGGER.info(myPrivateAddress + " is sending a RIP update\n");
-        multicast(RIPPacketUtil.getRIPPacket(RIP_UPDATE, id, routingTable));
+        List<byte[]> ripPackets;
+        synchronized (routingTable) {
+            // Everything is about to be sent, so nothing is pending for a triggered update anymore
+            routingTable.clearChanged();
+            ripPackets = RIPPacketUtil.getRIPPackets(RIP_UPDATE, id, routingTable);
+        }
+        for (byte[] ripPacket : ripPackets) {
+            multicast(ripPacket);
+        }
+    }
+
+    /**
+     * Hands the forwarding plane a new snapshot of the routing table if it changed. When the table churns, snapshots
+     * are built at most once every SNAPSHOT_PUBLISH_INTERVAL and the latest changes are picked up by a deferred one.
+     */
+    private void publishForwardingSnapshot() {
+        long wait = lastSnapshotPublishTime + SNAPSHOT_PUBLISH_INTERVAL - System.currentTimeMillis();
+        if (wait <= 0) {
+            rebuildForwardingSnapshot();
+        } else if (snapshotPublishPending.compareAndSet(false, true)) {
+            wheelTimer.schedule(() -> {
+                snapshotPublishPending.set(false);
+                rebuildForwardingSnapshot();
+            }, wait);
+        }
     }
 
     /**
-     * Listens on the multicast ip and updates the routing table entries accordingly
+     * Builds and publishes a snapshot of the routing table. The snapshot is built without holding any lock, so
+     * neither the routing table nor another thread publishing a snapshot waits for the build.
+     */
+    private void rebuildForwardingSnapshot() {
+        if (forwardingSnapshot.version != routingTable.version()) {
+            replaceForwardingSnapshot(routingTable.snapshot());
+        }
+        lastSnapshotPublishTime = System.currentTimeMillis();
+    }
+
+    /**
+     * Publishes a snapshot unless a newer one already was. Synchronized so that an older snapshot, whose build
+     * took longer, can never replace a newer one.
+     *
+     * @param snapshot the snapshot which was just built
+     */
+    private synchronized void replaceForwardingSnapshot(ForwardingSnapshot snapshot) {
+        if (snapshot.version > forwardingSnapshot.version) {
+            forwardingSnapshot = snapshot;
+        }
+    }
+
+    /**
+     * Returns the version of the routing table. It increases every time an entry changes, so two equal versions
+     * mean the table did not move in between.
+     *
+     * @return the version of the routing table
+     */
+    long getRoutingTableVersion() {
+        return routingTable.version();
+    }
+
+    /**
+     * Send a triggered update which only carries the entries that changed since the last update
+     */
+    private void sendTriggeredUpdate() throws IOException {
+        for (byte[] ripPacket : RIPPacketUtil.getChangedRIPPackets(RIP_UPDATE, id, routingTable)) {
+            multicast(ripPacket);
+        }
+    }
+
+    /**
+     * Listens on the multicast ip and updates the routing table entries accordingly.
+     * Each packet is applied as soon as it arrives, even if the sender's table spans several packets.
      *
      * @throws IOException
      */
@@ -358,33 +610,83 @@ public class Rover {
         while (true) {
             DatagramPacket packet = new DatagramPacket(buf, buf.length);
             socket.receive(packet);
-            List<RoutingTableEntry> entries = RIPPacketUtil.decodeRIPPacket(packet.getData(), packet.getLength());
-            updateEntries(packet.getAddress(), packet.getData()[2], packet.getData()[0], entries);
+            updateEntries(packet.getAddress(), packet.getData(), packet.getLength());
         }
     }
 
     /**
-     * Called by RouterDeathTimerTask object when
+     * Called by RouterDeathTimerTask object when a neighbor has not been heard from for too long.
+     * The routes through it are invalidated and then immediately recalculated from the cached tables of the other
+     * neighbors, so traffic fails over without waiting for their next update.
      *
+     * @param firedTask               the death timer task which fired
      * @param deadRoverPrivateAddress IP of the rover which died/is offline
+     * @param deadRoverPublicAddress  public IP of the rover which died/is offline
      */
-    void registerNeighborDeath(InetAddress deadRoverPrivateAddress, InetAddress deadRoverPublicAddress) throws IOException {
+    void registerNeighborDeath(RouterDeathTimerTask firedTask, InetAddress deadRoverPrivateAddress,
+                               InetAddress deadRoverPublicAddress) throws IOException {
         LOGGER.info(deadRoverPrivateAddress + " just died :(\n\n\n");
 
-        neighborTimers.get(deadRoverPrivateAddress).cancel();
-
-        routingTable.get(deadRoverPrivateAddress).metric = INFINITY;
-
-        for (InetAddress inetAddress : this.routingTable.keySet()) {
-            if (routingTable.get(inetAddress).nextHop.equals(deadRoverPublicAddress)) {
-                routingTable.get(inetAddress).metric = INFINITY;
+        // The task has fired, a new one is started if we hear from the rover again. If that already happened, the
+        // new task stays in place to detect the rover's next death
+        neighborTimers.remove(deadRoverPrivateAddress, firedTask);
+        // What the dead rover told us can't be used to find new paths
+        neighborRoutingTableEntriesCache.remove(deadRoverPrivateAddress);
+
+        int[] lostDestinations;
+        synchronized (routingTable) {
+            lostDestinations = routingTable.destinationsVia(IpUtils.toInt(deadRoverPublicAddress));
+            int deadRoverSlot = routingTable.indexOf(IpUtils.toInt(deadRoverPrivateAddress));
+            if (deadRoverSlot >= 0) {
+                routingTable.setMetric(deadRoverSlot, (byte) INFINITY);
             }
+            routingTable.setMetricForNextHop(IpUtils.toInt(deadRoverPublicAddress), (byte) INFINITY);
         }
 
+        rerouteFromNeighborCaches(lostDestinations, IpUtils.toInt(deadRoverPublicAddress));
+
+        // Not throttled: until the workers see the new snapshot they keep forwarding into the dead rover
+        rebuildForwardingSnapshot();
         LOGGER.info(myPublicAddress + "'s table as updated after rover death is \n" + getStringRoutingTable());
 
         // send a triggered update
-        sendRIPUpdate();
+        sendTriggeredUpdate();
+    }
+
+    /**
+     * Recalculates the given destinations from the cached tables of the neighbors which are still alive, applying
+     * the same rules as for a received update. A neighbor whose own route goes through the dead rover would only
+     * forward into it, so such entries are skipped like the ones which go through us.
+     *
+     * @param destinations      the destinations which lost their route
+     * @param deadRoverPublicIp the public ip of the rover which died packed into an int
+     */
+    private void rerouteFromNeighborCaches(int[] destinations, int deadRoverPublicIp) {
+        for (Map.Entry<InetAddress, NeighborRouteCache> neighbor : neighborRoutingTableEntriesCache.entrySet()) {
+            InetAddress neighborPublicAddress = privateToPublicAddresCache.get(neighbor.getKey());
+            if (neighborPublicAddress == null) {
+                continue;
+            }
+            int neighborPublicIp = IpUtils.toInt(neighborPublicAddress);
+            RoutingTable.EntryConsumer reroute = (destination, subnetMask, nextHop, metric) -> {
+                if (nextHop != deadRoverPublicIp) {
+                    updateTableFromEntry(neighborPublicIp, destination, subnetMask, nextHop, metric);
+                }
+            };
+            for (int destination : destinations) {
+                neighbor.getValue().get(destination, reroute);
+            }
+        }
+    }
+
+    /**
+     * Drops the cached entries which the neighbors stopped advertising, then schedules itself again
+     */
+    private void expireNeighborRoutes() {
+        for (NeighborRouteCache neighborEntries : neighborRoutingTableEntriesCache.values()) {
+            neighborEntries.expire();
+        }
+        wheelTimer.schedule(this::expireNeighborRoutes, NEIGHBOR_ROUTE_EXPIRY_TIME * 1000);
     }
 
     /**
@@ -392,29 +694,28 @@ public class Rover {
      * Note: this function was separated from updateRoutingTable since it is also used when a neighbor dies
      *
      * @param neighborPublicIp the ip of the neighbor who sent this entry
-     * @param entry            the entry in that neighbor's table
+     * @param ipAddress        the destination of the entry in that neighbor's table
+     * @param subnetMask       the subnet mask of the entry in that neighbor's table
+     * @param nextHop          the next hop of the entry in that neighbor's table
+     * @param metric           the metric of the entry in that neighbor's table
      */
-    private void updateTableFromEntry(InetAddress neighborPublicIp, RoutingTableEntry entry) {
+    private void updateTableFromEntry(int neighborPublicIp, int ipAddress, byte subnetMask,
+                                      int nextHop, byte metric) {
 
         // If the entry uses me as its next hop, I can't believe it and will read it as INFINITY
-        int entryVal = entry.nextHop.equals(myPublicAddress) ? INFINITY : entry.metric;
-
-        // If we've never seen the entry's IP before, we immediately add it
-        if (!routingTable.containsKey(entry.ipAddress)) {
-            routingTable.put(entry.ipAddress, new RoutingTableEntry(entry.ipAddress,
-                    entry.subnetMask,
-                    neighborPublicIp,
-                    (byte) ((1 + entryVal) >= INFINITY ? INFINITY : 1 + entryVal)));
-        }
-        // If the entry is this tables next hop, we will trust it
-        // Or if the entry is shorter, we update our entry
-        else if (routingTable.get(entry.ipAddress).nextHop.equals(neighborPublicIp) ||
-                routingTable.get(entry.ipAddress).metric > 1 + entryVal) {
-            routingTable.get(entry.ipAddress).metric =
-                    (byte) ((1 + entryVal) >= INFINITY ? INFINITY : 1 + entryVal);
-            routingTable.get(entry.ipAddress).nextHop = neighborPublicIp;
-            routingTable.get(entry.ipAddress).subnetMask = entry.subnetMask;
-        } else {
+        int entryVal = nextHop == myPublicIp ? INFINITY : metric;
+        byte newMetric = (byte) ((1 + entryVal) >= INFINITY ? INFINITY : 1 + entryVal);
+
+        synchronized (routingTable) {
+            int slot = routingTable.indexOf(ipAddress);
+
+            // If we've never seen the entry's IP before, we immediately add it
+            // If the entry is this tables next hop, we will trust it
+            // Or if the entry is shorter, we update our entry
+            if (slot < 0 || routingTable.nextHop(slot) == neighborPublicIp ||
+                    routingTable.metric(slot) > 1 + entryVal) {
+                routingTable.put(ipAddress, subnetMask, neighborPublicIp, newMetric);
+            }
         }
     }
 
@@ -449,11 +750,7 @@ public class Rover {
      * @return a neat representation of the routing table
      */
     private String getStringRoutingTable() {
-        StringBuilder res = new StringBuilder("IP Address\tNextHop\t\tMetric\n");
-        for (RoutingTableEntry entry : routingTable.values()) {
-            res.append(entry.toString() + " \n");
-        }
-        return res.toString();
+        return "IP Address\tNextHop\t\tMetric\n" + routingTable;
     }
 
 
@@ -467,7 +764,8 @@ public class Rover {
         ArgumentParser argsParser = new ArgumentParser(args);
         if (argsParser.success) {
             new Rover(argsParser.roverId, argsParser.multicastPort, argsParser.multicastAddress, argsParser.fileToSend,
-                    argsParser.destAddress);
+                    argsParser.destAddress, argsParser.windowSize, argsParser.congestionControl,
+                    argsParser.forwardingThreads, argsParser.dropPolicy);
         }
     }
 }
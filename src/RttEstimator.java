@@ -0,0 +1,68 @@
+/**
+ * Estimates the round trip time of a path and derives the retransmission timeout from it, as described in RFC 6298.
+ * <p>
+ * The smoothed RTT follows the samples with a gain of 1/8 and the RTT variation with a gain of 1/4. The timeout is
+ * SRTT + 4 * RTTVAR, kept between MIN_RTO and MAX_RTO. Every timeout doubles it until the next valid sample arrives.
+ * Callers must follow Karn's rule and only feed samples of segments which were sent exactly once, since the ACK of a
+ * retransmitted segment can't be matched to one of its transmissions.
+ * <p>
+ * The sender logs the estimate through toString() on every timeout and in its progress reports.
+ */
+class RttEstimator {
+    final static long MIN_RTO = 10, // in milliseconds, a one hop path should retransmit quickly
+            MAX_RTO = 10_000;
+    private final static double ALPHA = 1.0 / 8, BETA = 1.0 / 4;
+    private final static int K = 4;
+
+    private double smoothedRtt = -1, rttVariation; // in milliseconds, -1 until the first sample
+    private long rto;
+
+    /**
+     * Constructs an estimator which has no samples yet
+     *
+     * @param initialRto the timeout to use until the first sample arrives, in milliseconds
+     */
+    RttEstimator(long initialRto) {
+        rto = clamp(initialRto);
+    }
+
+    /**
+     * Adds a measured round trip time
+     *
+     * @param sampleMillis the time between sending a segment which was only sent once and receiving its ACK
+     */
+    void addSample(long sampleMillis) {
+        if (smoothedRtt < 0) {
+            smoothedRtt = sampleMillis;
+            rttVariation = sampleMillis / 2.0;
+        } else {
+            rttVariation = (1 - BETA) * rttVariation + BETA * Math.abs(smoothedRtt - sampleMillis);
+            smoothedRtt = (1 - ALPHA) * smoothedRtt + ALPHA * sampleMillis;
+        }
+        // The variation term is at least a millisecond, the granularity of our clock
+        rto = clamp((long) Math.ceil(smoothedRtt + Math.max(1, K * rttVariation)));
+    }
+
+    /**
+     * Doubles the timeout after the retransmission timer expired
+     */
+    void backOff() {
+        rto = clamp(rto * 2);
+    }
+
+    /**
+     * @return the current retransmission timeout in milliseconds
+     */
+    long getRto() {
+        return rto;
+    }
+
+    private static long clamp(long rto) {
+        return Math.max(MIN_RTO, Math.min(MAX_RTO, rto));
+    }
+
+    @Override
+    public String toString() {
+        return String.format("srtt=%.1fms rttvar=%.1fms rto=%dms", smoothedRtt, rttVariation, rto);
+    }
+}
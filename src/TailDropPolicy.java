@@ -0,0 +1,15 @@
+/**
+ * Only drops what arrives at a full queue. Keeps the link busiest, but lets a standing queue build up in front of it.
+ */
+class TailDropPolicy implements DropPolicy {
+
+    @Override
+    public boolean shouldDrop(int depth, int capacity) {
+        return false;
+    }
+
+    @Override
+    public String toString() {
+        return "tail";
+    }
+}